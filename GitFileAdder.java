@@ -5,27 +5,88 @@
 //DEPS com.squareup.okhttp3:okhttp:4.12.0
 //DEPS info.picocli:picocli:4.7.6
 //DEPS org.kohsuke:github-api:1.327
+//SOURCES GitHubRequestScheduler.java
+//SOURCES GitHubRetryPolicy.java
+//SOURCES GitHubClientOptions.java
+//SOURCES GitHubMetadataStore.java
+//SOURCES GitHubApiMetrics.java
+//SOURCES GitHubGraphQL.java
+//SOURCES GitHubCredentials.java
+//SOURCES GitHubRepositoryListing.java
+//SOURCES RepositoryFilterOptions.java
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import okhttp3.Cache;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
 import org.kohsuke.github.GHContent;
-import org.kohsuke.github.GHContentBuilder;
+import org.kohsuke.github.GHFileNotFoundException;
+import org.kohsuke.github.GHIssueState;
 import org.kohsuke.github.GHOrganization;
 import org.kohsuke.github.GHPullRequest;
 import org.kohsuke.github.GHRef;
 import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHTree;
+import org.kohsuke.github.GHTreeBuilder;
+import org.kohsuke.github.GHTreeEntry;
 import org.kohsuke.github.GitHub;
+import org.kohsuke.github.HttpException;
 
-import org.kohsuke.github.GitHubBuilder;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
 import org.kohsuke.github.extras.okhttp3.OkHttpGitHubConnector;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -38,7 +99,8 @@ import picocli.CommandLine.Parameters;
 public class GitFileAdder implements Runnable {
     public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitFileAdder.class.getPackageName());
 
-    @Parameters(index = "0", description = "The files to add", arity = "1..*")
+    @Parameters(index = "0", description = "The files to add. Directories are added recursively, preserving " +
+            "the relative paths of the files within them. Not needed with --rollback", arity = "0..*")
     private List<File> files;
 
     @Option(names = { "-o",
@@ -74,7 +136,53 @@ public class GitFileAdder implements Runnable {
             "false means an existing file will result in failure", defaultValue = "false")
     private boolean updateExisting;
 
-    private final String cacheDir = System.getProperty("user.home") + "/.cache/git-file-adder-cache";
+    @Option(names = { "-j",
+            "--parallelism" }, description = "Maximum number of repositories to update concurrently. " +
+            "Values greater than 1 process repositories on virtual threads", defaultValue = "1")
+    private int parallelism;
+
+    @Option(names = {
+            "--journal-file" }, description = "File to which the progress of each repository is recorded, " +
+            "so an interrupted run can be resumed", defaultValue = "git-file-adder.journal")
+    private Path journalFile;
+
+    @Option(names = {
+            "--resume" }, description = "Use the journal file to skip repositories completed by a previous run " +
+            "with the same organization, topic branch and files, and to continue half-finished ones", defaultValue = "false")
+    private boolean resume;
+
+    @Option(names = {
+            "--rollback" }, description = "Instead of adding files, close open PRs from the topic branch with a comment " +
+            "and delete the topic branch in each selected repository", defaultValue = "false")
+    private boolean rollback;
+
+    @Option(names = {
+            "--rollback-comment" }, description = "Comment added to each PR closed by --rollback",
+            defaultValue = "Closed by git-file-adder as this change is being rolled back.")
+    private String rollbackComment;
+
+    @CommandLine.Mixin
+    private RepositoryFilterOptions filterOptions;
+
+    @CommandLine.Mixin
+    private GitHubClientOptions clientOptions;
+
+    private RunJournal journal;
+
+    private GitHubGraphQL graphQL;
+
+    private GitHubCredentials credentials;
+
+    /** Largest page size GitHub allows when listing repositories */
+    private static final int MAX_PAGE_SIZE = 100;
+
+    /** Number of repositories whose state is fetched by each pre-flight GraphQL query */
+    private static final int PREFLIGHT_BATCH_SIZE = 50;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Git file mode of an executable file */
+    private static final int EXECUTABLE_MODE = 0100755;
 
     public static void main(String[] args) {
         int exitCode = new CommandLine(new GitFileAdder()).execute(args);
@@ -90,163 +198,661 @@ public class GitFileAdder implements Runnable {
                 log.severe("Both --repo-regex and --repo-list were configured. Choose one or the other.");
                 return;
             }
-            log.info("❇️ Ingesting files");
+            if (!rollback && (files == null || files.isEmpty())) {
+                log.severe("No files to add were given.");
+                return;
+            }
 
-            Map<String, byte[]> contentMap = createContentMap();
+            Map<String, FileContent> contentMap = null;
+            if (!rollback) {
+                log.info("❇️ Ingesting files");
+                contentMap = createContentMap();
+                journal = RunJournal.open(journalFile, organization, topicBranch, contentHash(contentMap), resume);
+            } else {
+                journal = RunJournal.open(journalFile, organization, topicBranch, RunJournal.ANY_CONTENT, false);
+            }
 
             // Connect to GitHub
-            GitHub github = setupGitHubClient();
+            GitHub github = clientOptions.setupGitHubClient(StreamingConnector::new);
             GHOrganization org = github.getOrganization(organization);
             if (org == null) {
                 log.severe("Organization not found: " + organization);
                 return;
             }
-            log.info("❇️ Preparing to add files to organization " + org.getLogin());
-
-            // Fetch all repositories based on regex
-
+            credentials = loadCredentials();
+            graphQL = credentials == null ? null : GitHubGraphQL.create(clientOptions.connector(), credentials);
+            GitHubRepositoryListing.Filter filter = filterOptions.filter(false);
+            Iterable<Candidate> candidates;
+            Predicate<Candidate> selected;
             if (listBased) {
+                // Look the listed repositories up directly rather than paging through the whole organization
                 log.info("Fetching repositories matching list: " + repoList);
+                candidates = lookupRepositories(github, repoList).stream().map(Candidate::new).toList();
+                selected = repo -> matches(filter, repo);
+            } else if (graphQL != null && filterOptions.graphQL()) {
+                // Page through the repositories GitHub selects with the filter, fetching only the fields used
+                // to update them, and matching them against the regex as each page arrives
+                log.info("Fetching repositories matching pattern: " + repoRegex);
+                Pattern repoPattern = Pattern.compile(repoRegex);
+                Iterable<GitHubRepositoryListing.Repository> listed = new GitHubRepositoryListing(graphQL)
+                        .list(organization, filter, Set.of(GitHubRepositoryListing.Field.DEFAULT_BRANCH));
+                candidates = () -> StreamSupport.stream(listed.spliterator(), false)
+                        .map(repo -> new Candidate(github, organization, repo))
+                        .iterator();
+                selected = repo -> repoPattern.matcher(repo.name()).matches();
             } else {
+                // Page through all repositories, matching them against the regex and filter as each page arrives
                 log.info("Fetching repositories matching pattern: " + repoRegex);
+                Pattern repoPattern = Pattern.compile(repoRegex);
+                Iterable<GHRepository> listed = org.listRepositories().withPageSize(MAX_PAGE_SIZE);
+                candidates = () -> StreamSupport.stream(listed.spliterator(), false).map(Candidate::new).iterator();
+                selected = repo -> repoPattern.matcher(repo.name()).matches() && matches(filter, repo);
+            }
+            if (rollback) {
+                rollback(org, candidates, selected);
+                return;
             }
-            Pattern repoPattern = Pattern.compile(repoRegex);
-            List<GHRepository> allRepos = org.listRepositories().toList();
-            log.info("Found " + allRepos.size() + " candidate repositories");
-            List<GHRepository> filteredRepos = allRepos.stream()
-                    .filter(repo -> !repo.isArchived())
-                    .filter(repo -> !listBased || repoList.contains(repo.getName()))
-                    .filter(repo -> listBased || repoPattern.matcher(repo.getName()).matches())
-                    .toList();
-            log.info("Found " + filteredRepos.size() + " matching repositories");
-
-            int count = 0;
-            for (GHRepository repo : filteredRepos) {
-                if (addFilesToRepo(repo, contentMap)) {
-                    count++;
+            log.info("❇️ Preparing to add files to organization " + org.getLogin());
+
+            int scanned = 0;
+            int matched = 0;
+            int count;
+            int skipped;
+            try (RepositoryWorkers workers = new RepositoryWorkers(parallelism)) {
+                // Hand matching repositories to the workers a pre-flight batch at a time, so work starts
+                // as soon as the first matches are found rather than after the whole listing is fetched
+                List<Candidate> batch = new ArrayList<>();
+                for (Candidate repo : candidates) {
+                    scanned++;
+                    if (repo.archived() || !selected.test(repo)) {
+                        continue;
+                    }
+                    matched++;
+                    batch.add(repo);
+                    if (batch.size() == PREFLIGHT_BATCH_SIZE) {
+                        submitBatch(workers, batch, contentMap);
+                        batch = new ArrayList<>();
+                    }
                 }
+                submitBatch(workers, batch, contentMap);
+                log.info("Found " + matched + " matching repositories out of " + scanned + " candidates");
+                workers.awaitCompletion();
+                count = workers.count(Outcome.SUBMITTED);
+                skipped = workers.count(Outcome.SKIPPED);
             }
 
-            if (count == filteredRepos.size()) {
+            if (skipped > 0) {
+                log.info("⏭️ " + skipped + " repositories already had identical content or an open PR " +
+                        "from the topic branch and were skipped");
+            }
+            int failed = matched - count - skipped;
+            if (failed == 0) {
                 log.info("🎉 " + count + " PRs adding files were submitted for " + organization);
             } else if (count == 0) {
                 log.severe("❌ Failed adding to add files to any repositories");
             } else {
                 log.warning("⚠️ " + count + " PRs adding files were submitted for " + organization +
-                        "; submitting PRs to " + (filteredRepos.size() - count) + " repositories failed");
+                        "; submitting PRs to " + failed + " repositories failed");
             }
         } catch (IOException e) {
             log.severe("Error: " + e);
             e.printStackTrace();
+        } catch (UncheckedIOException e) {
+            // A later page of the listing, or a repository's details for the filter, couldn't be fetched
+            log.severe("Error: " + e.getCause());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.severe("Interrupted while waiting for repository updates to complete");
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+            clientOptions.report();
         }
     }
 
-    private Map<String, byte[]> createContentMap() {
+    /**
+     * Applies the filter to a repository that GitHub didn't filter
+     */
+    private static boolean matches(GitHubRepositoryListing.Filter filter, Candidate repo) {
         try {
-            String dir = path.isEmpty() ? path : path.endsWith("/") ? path : path + "/";
-            Map<String, byte[]> map = new LinkedHashMap<>();
-            for (File file : files) {
-                map.put(dir + file.getName(), Files.readAllBytes(file.toPath()));
-            }
-            return map;
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+            return filter.matches(GitHubRepositoryListing.Repository.fromGitHub(repo.repository(), filter.topic() != null));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * Set up GitHub client with caching to reduce API calls
+     * Concurrently looks up each of the named repositories in the organization. Names that can't be resolved
+     * are reported before any repository is updated.
      */
-    public GitHub setupGitHubClient() throws IOException {
+    private List<GHRepository> lookupRepositories(GitHub github, List<String> names) throws InterruptedException {
+        Map<String, Future<GHRepository>> lookups = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String name : names) {
+                lookups.computeIfAbsent(name, n -> executor.submit(() -> github.getRepository(organization + "/" + n)));
+            }
+        }
+        List<GHRepository> result = new ArrayList<>();
+        List<String> unresolved = new ArrayList<>();
+        for (Map.Entry<String, Future<GHRepository>> entry : lookups.entrySet()) {
+            try {
+                result.add(entry.getValue().get());
+            } catch (ExecutionException e) {
+                log.finest("Failed to resolve " + entry.getKey() + ": " + e.getCause());
+                unresolved.add(entry.getKey());
+            }
+        }
+        if (!unresolved.isEmpty()) {
+            log.warning("⚠️ " + unresolved.size() + " listed repositories could not be found in " + organization + ": " + unresolved);
+        }
+        return result;
+    }
 
-        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder();
+    /**
+     * Concurrently rolls back the selected repositories, then reports what was reverted
+     */
+    private void rollback(GHOrganization org, Iterable<Candidate> candidates, Predicate<Candidate> selected)
+            throws InterruptedException {
+        log.info("↩️ Preparing to roll back topic branch " + topicBranch + " in organization " + org.getLogin());
+        Map<String, Reverted> reverted = new ConcurrentSkipListMap<>();
+        int matched = 0;
+        int count;
+        int skipped;
+        try (RepositoryWorkers workers = new RepositoryWorkers(parallelism)) {
+            for (Candidate repo : candidates) {
+                // Archived repositories are read-only, so nothing can have been added to them
+                if (repo.archived() || !selected.test(repo)) {
+                    continue;
+                }
+                matched++;
+                workers.submit(() -> rollbackRepo(repo, reverted));
+            }
+            workers.awaitCompletion();
+            count = workers.count(Outcome.REVERTED);
+            skipped = workers.count(Outcome.SKIPPED);
+        }
 
-        if (ensureDirectoryExists(cacheDir)) {
-            log.finest("Cache directory: " + cacheDir);
-            Cache cache = new Cache(Path.of(cacheDir).toFile(), 10 * 1024 * 1024); // 10MB cache
-            clientBuilder.cache(cache);
+        for (Map.Entry<String, Reverted> entry : reverted.entrySet()) {
+            log.info("↩️ " + entry.getKey() + ": " + entry.getValue());
+        }
+        if (skipped > 0) {
+            log.info("⏭️ " + skipped + " repositories had no open PR from topic branch " + topicBranch + " and no such branch");
+        }
+        int closed = reverted.values().stream().mapToInt(r -> r.closedPullRequests().size()).sum();
+        long deleted = reverted.values().stream().filter(Reverted::branchDeleted).count();
+        int failed = matched - count - skipped;
+        String summary = "Rolled back " + count + " repositories in " + organization + ": closed " + closed + " PRs and deleted "
+                + deleted + " topic branches";
+        if (failed == 0) {
+            log.info("🎉 " + summary);
         } else {
-            log.finest("Cannot create cache directory at " + cacheDir + " -- will use a non-caching GitHub API connector");
+            log.warning("⚠️ " + summary + "; rolling back " + failed + " repositories failed");
         }
+    }
 
-        log.finest("Creating GitHub API connector");
-        var connector = new OkHttpGitHubConnector(clientBuilder.build());
+    /**
+     * Closes any open PR from the topic branch with a comment, then deletes the topic branch. PRs are closed first so
+     * they get the comment rather than being closed implicitly by the branch's deletion.
+     */
+    private Outcome rollbackRepo(Candidate repo, Map<String, Reverted> reverted) {
+        String tag = tag(repo);
+        List<String> closed = new ArrayList<>();
+        boolean deleted = false;
+        try {
+            if (topicBranch.equals(repo.defaultBranch()) || topicBranch.equals(baseBranch)) {
+                throw new IllegalStateException(String.format("Topic branch %s is the target branch of repository %s",
+                        topicBranch, repo.name()));
+            }
+            GHRepository repository = repo.repository();
+            for (GHPullRequest pr : repository.queryPullRequests().head(organization + ":" + topicBranch)
+                    .state(GHIssueState.OPEN).list().toList()) {
+                pr.comment(rollbackComment);
+                pr.close();
+                closed.add(String.valueOf(pr.getHtmlUrl()));
+                log.info(tag + "↩️ Closed pull request " + pr.getHtmlUrl());
+            }
+            GHRef ref = findRef(repository, "heads/" + topicBranch);
+            if (ref != null) {
+                deleteRef(repository, ref);
+                deleted = true;
+                log.info(tag + "↩️ Deleted topic branch " + topicBranch);
+            }
+            // Neither the branch nor a PR from it is left, so a resumed run must start this repository over
+            journal.record(repo.name(), Stage.ROLLED_BACK, null);
+        } catch (Exception e) {
+            log.severe(tag + "❌ Failed rolling back repo " + repo.name() + " due to " + e);
+            if (!closed.isEmpty()) {
+                reverted.put(repo.name(), new Reverted(closed, false));
+            }
+            return Outcome.FAILED;
+        }
+        if (closed.isEmpty() && !deleted) {
+            log.info(tag + "⏭️ Nothing to roll back");
+            return Outcome.SKIPPED;
+        }
+        reverted.put(repo.name(), new Reverted(closed, deleted));
+        return Outcome.REVERTED;
+    }
 
-        GitHub gh = GitHubBuilder.fromPropertyFile()
-                .withConnector(connector)
-                .build();
-        log.finest("Connected successfully");
-        return gh;
+    /**
+     * Looks a ref up by name, e.g. {@code heads/main}
+     *
+     * @return the ref, or {@code null} if there is no such ref
+     */
+    private static GHRef findRef(GHRepository repo, String name) throws IOException {
+        try {
+            return repo.getRef(name);
+        } catch (GHFileNotFoundException e) {
+            return null;
+        }
     }
 
-    private boolean ensureDirectoryExists(String dirPath) {
-        Path path = Path.of(dirPath);
-        if (!Files.exists(path)) {
+    /**
+     * Deletes a ref. A retried request may have deleted it before its response was lost, so a ref that no longer
+     * exists counts as deleted.
+     */
+    private static void deleteRef(GHRepository repo, GHRef ref) throws IOException {
+        try {
+            ref.delete();
+        } catch (IOException ioe) {
+            String name = ref.getRef().substring("refs/".length());
             try {
-                Files.createDirectories(path);
-                return true;
-            } catch (IOException e) {
-                log.warning("⚠️ Failed to create directory: " + dirPath + " -- request caching will not be available");
-                return false;
+                if (findRef(repo, name) == null) {
+                    return;
+                }
+            } catch (IOException lookup) {
+                ioe.addSuppressed(lookup);
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Maps each file to add to its path in the repositories. Only the files' sizes and blob SHAs are held in memory;
+     * their content is streamed from disk whenever it is uploaded. Package-private for the benchmarks.
+     */
+    Map<String, FileContent> createContentMap() {
+        try {
+            String dir = path.isEmpty() ? path : path.endsWith("/") ? path : path + "/";
+            Map<String, FileContent> map = new LinkedHashMap<>();
+            for (File file : files) {
+                Path source = file.toPath();
+                if (Files.isDirectory(source)) {
+                    String prefix = dir + file.getName() + "/";
+                    try (Stream<Path> tree = Files.walk(source)) {
+                        for (Path child : tree.filter(Files::isRegularFile).sorted().toList()) {
+                            String relative = source.relativize(child).toString().replace(File.separatorChar, '/');
+                            map.put(prefix + relative, FileContent.of(child));
+                        }
+                    }
+                } else {
+                    map.put(dir + file.getName(), FileContent.of(source));
+                }
             }
+            return map;
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
         }
-        return true;
     }
 
-    private boolean addFilesToRepo(GHRepository repo, Map<String, byte[]> contentMap) {
-        log.info("Adding files  for " + repo.getName());
+    /**
+     * Identifies the set of files being added, for use as part of the journal key
+     */
+    private static String contentHash(Map<String, FileContent> contentMap) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (Map.Entry<String, FileContent> entry : contentMap.entrySet()) {
+                digest.update((entry.getKey() + "\0" + entry.getValue().blobSha() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest()).substring(0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the SHA-1 git would assign to a blob with the given content, i.e. the hash of
+     * {@code "blob <length>\0"} followed by the content. This lets us compare local files to
+     * tree entries on GitHub without downloading anything.
+     */
+    private static String gitBlobSha(Path source, long size) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+            try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Outcome addFilesToRepo(Candidate repo, Map<String, FileContent> contentMap, RepoState preflightState) {
+        String tag = tag(repo);
+        RunJournal.Entry previous = journal.previous(repo.name());
+        if (previous != null && previous.stage() == Stage.PR_OPENED) {
+            log.info(tag + "⏭️ Pull request " + previous.detail() + " was opened by a previous run");
+            return Outcome.SUBMITTED;
+        } else if (previous != null && previous.stage() == Stage.SKIPPED) {
+            log.info(tag + "⏭️ A previous run found all files already exist with identical content");
+            return Outcome.SKIPPED;
+        }
+        log.info(tag + "Adding files for " + repo.name());
         GHRef newBranch = null;
         try {
-            String branchName = baseBranch != null && !baseBranch.isEmpty() ? baseBranch : repo.getDefaultBranch();
-            String sha1 = repo.getBranch(branchName).getSHA1();
-            newBranch = repo.createRef("refs/heads/" + topicBranch, sha1);
-            addContent(repo, topicBranch, contentMap);
-            GHPullRequest pr = repo.createPullRequest(getPRMessage(), topicBranch, branchName, "Created by git-file-adder");
-            log.info("❇️ Created pull request at " + pr.getUrl());
-            return true;
+            String branchName;
+            String commitSha;
+            if (previous != null && (previous.stage() == Stage.COMMITTED || previous.stage() == Stage.REF_CREATED)) {
+                log.info(tag + "Resuming after stage " + previous.stage() + " of a previous run");
+                branchName = preflightState != null ? preflightState.branchName() : targetBranch(repo);
+                commitSha = previous.detail();
+            } else {
+                RepoState state = preflightState != null ? preflightState : discoverState(repo, contentMap.keySet());
+                branchName = state.branchName();
+                if (state.openPullRequest() != null) {
+                    log.info(tag + "⏭️ Pull request " + state.openPullRequest() + " from branch " + topicBranch + " is already open; skipping");
+                    return Outcome.SKIPPED;
+                }
+                if (state.topicBranchExists()) {
+                    throw new IllegalStateException(String.format("Repository %s already has a branch %s",
+                            repo.name(), topicBranch));
+                }
+                Map<String, FileContent> changes = getChangedContent(state, contentMap);
+                if (changes.isEmpty()) {
+                    log.info(tag + "⏭️ All files already exist with identical content in branch " + branchName + "; skipping");
+                    journal.record(repo.name(), Stage.SKIPPED, branchName);
+                    return Outcome.SKIPPED;
+                }
+                commitSha = commitContent(repo.repository(), state, changes);
+                journal.record(repo.name(), Stage.COMMITTED, commitSha);
+            }
+            if (previous != null && previous.stage() == Stage.REF_CREATED) {
+                newBranch = repo.repository().getRef("heads/" + topicBranch);
+            } else {
+                newBranch = createTopicBranch(repo.repository(), commitSha);
+                journal.record(repo.name(), Stage.REF_CREATED, commitSha);
+            }
+            GHPullRequest pr = createPullRequest(repo.repository(), branchName);
+            journal.record(repo.name(), Stage.PR_OPENED, String.valueOf(pr.getHtmlUrl()));
+            log.info(tag + "❇️ Created pull request at " + pr.getUrl());
+            return Outcome.SUBMITTED;
         } catch (Exception e) {
-            log.severe("❌ Failed adding to repo " + repo.getName() + " due to " + e);
+            log.severe(tag + "❌ Failed adding to repo " + repo.name() + " due to " + e);
             e.printStackTrace();
-            if (newBranch != null) {
+            if (GitHubRetryPolicy.isTransient(e)) {
+                // Keep the journal's record of the progress made, so --resume can pick up where this run left off
+                // rather than starting over once GitHub recovers
+                log.warning(tag + "⚠️ GitHub failed transiently; " + (newBranch != null ? "topic branch " + topicBranch + " was kept and " : "")
+                        + "a run with --resume will continue from the last completed stage");
+            } else if (newBranch != null) {
                 try {
                     newBranch.delete();
-                    log.info("Cleaned up by deleting topic branch " + topicBranch + " from repo " + repo.getName());
+                    log.info(tag + "Cleaned up by deleting topic branch " + topicBranch + " from repo " + repo.name());
+                    journal.record(repo.name(), Stage.FAILED, null);
                 } catch (IOException ioe) {
-                    log.severe("Failed to clean up repo " + repo.getName() + " by deleting branch " + topicBranch + " due to " + ioe);
+                    log.severe(tag + "Failed to clean up repo " + repo.name() + " by deleting branch " + topicBranch + " due to " + ioe);
                     e.printStackTrace();
                 }
             }
         }
-        return false;
+        return Outcome.FAILED;
     }
 
-    private void addContent(GHRepository repo, String branchName, Map<String, byte[]> contentMap) throws IOException {
-        for (Map.Entry<String, byte[]> entry : contentMap.entrySet()) {
-            String currentSha = updateExisting ? getCurrentSha(repo, branchName, entry.getKey()) : null;
-            GHContentBuilder builder = repo.createContent()
-                    .branch(branchName)
-                    .message("Add " + entry.getKey())
-                    .path(entry.getKey())
-                    .content(entry.getValue());
-            if (currentSha != null) {
-                builder.sha(currentSha);
-            }
+    private String targetBranch(Candidate repo) {
+        return baseBranch != null && !baseBranch.isEmpty() ? baseBranch : repo.defaultBranch();
+    }
+
+    private void submitBatch(RepositoryWorkers workers, List<Candidate> batch, Map<String, FileContent> contentMap)
+            throws InterruptedException {
+        Map<String, RepoState> states = preflight(batch, contentMap.keySet());
+        for (Candidate repo : batch) {
+            RepoState state = states.get(repo.name());
+            workers.submit(() -> addFilesToRepo(repo, contentMap, state));
+        }
+    }
+
+    private GitHubCredentials loadCredentials() {
+        try {
+            return GitHubCredentials.fromPropertyFile();
+        } catch (IOException e) {
+            log.warning("⚠️ GraphQL listing, GraphQL pre-flight and streamed uploads are not available; repositories " +
+                    "will be listed with the REST API, inspected individually and files will be uploaded from memory: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the state of the target branches of many repositories with batched GraphQL queries, so the write
+     * phase doesn't need to discover it repository by repository. Repositories the pre-flight couldn't resolve
+     * are absent from the result and are inspected via the REST API when they are processed.
+     */
+    private Map<String, RepoState> preflight(List<Candidate> repos, Set<String> paths) {
+        Map<String, RepoState> result = new HashMap<>();
+        if (graphQL == null) {
+            return result;
+        }
+        List<Candidate> pending = repos.stream()
+                .filter(repo -> {
+                    RunJournal.Entry previous = journal.previous(repo.name());
+                    return previous == null || previous.stage() == Stage.FAILED;
+                })
+                .toList();
+        for (int i = 0; i < pending.size(); i += PREFLIGHT_BATCH_SIZE) {
+            List<Candidate> batch = pending.subList(i, Math.min(i + PREFLIGHT_BATCH_SIZE, pending.size()));
+            log.info("❇️ Fetching the state of " + batch.size() + " repositories");
             try {
-                builder.commit();
-            } catch (IOException ioe) {
-                if (!updateExisting) {
-                    // See if the file already exists; if so fail with a more useful message
-                    currentSha = getCurrentSha(repo, branchName, entry.getKey());
-                    if (currentSha != null) {
-                        throw new IllegalStateException(
-                                String.format("Repository %s already has content with path %s in branch %s; " +
-                                "the --update-existing option must be used to update content",
-                                        repo.getName(), entry.getKey(), branchName)
-                                , ioe);
+                result.putAll(preflightBatch(batch, paths));
+            } catch (IOException e) {
+                log.warning("⚠️ GraphQL pre-flight failed for " + batch.size() +
+                        " repositories; they will be inspected individually: " + e);
+            }
+        }
+        return result;
+    }
+
+    private Map<String, RepoState> preflightBatch(List<Candidate> batch, Set<String> paths) throws IOException {
+        // Existing files are found by listing the entries of each distinct parent directory
+        List<String> dirs = new ArrayList<>(new LinkedHashSet<>(paths.stream().map(GitFileAdder::parentDir).toList()));
+        boolean hasBaseBranch = baseBranch != null && !baseBranch.isEmpty();
+        String revision = hasBaseBranch ? baseBranch : "HEAD";
+
+        StringBuilder query = new StringBuilder("query {\n");
+        for (int i = 0; i < batch.size(); i++) {
+            query.append("  r").append(i).append(": repository(owner: ").append(GitHubGraphQL.literal(organization))
+                    .append(", name: ").append(GitHubGraphQL.literal(batch.get(i).name())).append(") {\n");
+            query.append(hasBaseBranch
+                            ? "    base: ref(qualifiedName: " + GitHubGraphQL.literal("refs/heads/" + baseBranch) + ") {"
+                            : "    base: defaultBranchRef {")
+                    .append(" name target { ... on Commit { oid tree { oid } } } }\n");
+            query.append("    topic: ref(qualifiedName: ").append(GitHubGraphQL.literal("refs/heads/" + topicBranch))
+                    .append(") { name }\n");
+            query.append("    pullRequests(headRefName: ").append(GitHubGraphQL.literal(topicBranch))
+                    .append(", states: OPEN, first: 1) { nodes { url } }\n");
+            for (int j = 0; j < dirs.size(); j++) {
+                query.append("    d").append(j).append(": object(expression: ")
+                        .append(GitHubGraphQL.literal(revision + ":" + dirs.get(j)))
+                        .append(") { ... on Tree { entries { name oid mode } } }\n");
+            }
+            query.append("  }\n");
+        }
+        query.append("}\n");
+
+        JsonNode data = graphQL.query(query.toString());
+        Map<String, RepoState> result = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            JsonNode repoNode = data.path("r" + i);
+            JsonNode base = repoNode.path("base");
+            String baseSha = base.path("target").path("oid").asText(null);
+            String baseTreeSha = base.path("target").path("tree").path("oid").asText(null);
+            if (baseSha == null || baseTreeSha == null) {
+                continue;
+            }
+            Map<String, ExistingFile> existing = new HashMap<>();
+            for (String contentPath : paths) {
+                String name = contentPath.substring(contentPath.lastIndexOf('/') + 1);
+                JsonNode entries = repoNode.path("d" + dirs.indexOf(parentDir(contentPath))).path("entries");
+                for (JsonNode entry : entries) {
+                    if (name.equals(entry.path("name").asText())) {
+                        existing.put(contentPath, new ExistingFile(entry.path("oid").asText(),
+                                entry.path("mode").asInt() == EXECUTABLE_MODE));
                     }
                 }
-                throw ioe;
             }
+            JsonNode pullRequests = repoNode.path("pullRequests").path("nodes");
+            result.put(batch.get(i).name(), new RepoState(base.path("name").asText(), baseSha, baseTreeSha,
+                    existing, true, !repoNode.path("topic").isNull() && !repoNode.path("topic").isMissingNode(),
+                    pullRequests.isEmpty() ? null : pullRequests.get(0).path("url").asText()));
+        }
+        return result;
+    }
+
+    private static String parentDir(String contentPath) {
+        int slash = contentPath.lastIndexOf('/');
+        return slash < 0 ? "" : contentPath.substring(0, slash);
+    }
+
+    /**
+     * Fetches the state of a repository's target branch via the REST API, for repositories that
+     * weren't covered by the {@link #preflight pre-flight}.
+     */
+    private RepoState discoverState(Candidate repo, Set<String> paths) throws IOException {
+        String branchName = targetBranch(repo);
+        GHRepository repository = repo.repository();
+        String sha1 = repository.getBranch(branchName).getSHA1();
+        GHTree baseTree = repository.getTreeRecursive(sha1, 1);
+        Map<String, ExistingFile> existing = new HashMap<>();
+        for (String contentPath : paths) {
+            GHTreeEntry entry = baseTree.getEntry(contentPath);
+            if (entry != null) {
+                existing.put(contentPath, new ExistingFile(entry.getSha(), "100755".equals(entry.getMode())));
+            }
+        }
+        // Whether the topic branch or a PR from it exist isn't known; creating the branch will fail if it exists
+        return new RepoState(branchName, sha1, baseTree.getSha(), existing, !baseTree.isTruncated(), false, null);
+    }
+
+    /**
+     * Creates the topic branch pointing at {@code commitSha}. A previous run may have created the branch but died
+     * before journaling it, or a retried request may have created it before its response was lost, so an existing
+     * branch already pointing at the commit is accepted.
+     */
+    private GHRef createTopicBranch(GHRepository repo, String commitSha) throws IOException {
+        try {
+            return repo.createRef("refs/heads/" + topicBranch, commitSha);
+        } catch (IOException ioe) {
+            try {
+                GHRef existing = repo.getRef("heads/" + topicBranch);
+                if (commitSha.equals(existing.getObject().getSha())) {
+                    return existing;
+                }
+            } catch (IOException lookup) {
+                ioe.addSuppressed(lookup);
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Opens the PR from the topic branch. If a retried request opened it before its response was lost, GitHub rejects
+     * the retry as a duplicate, so an open PR from the topic branch is accepted.
+     */
+    private GHPullRequest createPullRequest(GHRepository repo, String branchName) throws IOException {
+        try {
+            return repo.createPullRequest(getPRMessage(), topicBranch, branchName, "Created by git-file-adder");
+        } catch (IOException ioe) {
+            try {
+                List<GHPullRequest> existing = repo.queryPullRequests().head(organization + ":" + topicBranch)
+                        .base(branchName).state(GHIssueState.OPEN).list().toList();
+                if (!existing.isEmpty()) {
+                    return existing.get(0);
+                }
+            } catch (IOException lookup) {
+                ioe.addSuppressed(lookup);
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Prefix for log messages about a repository, so output from concurrently processed repositories can be told apart
+     */
+    private static String tag(Candidate repo) {
+        return "[" + repo.name() + "] ";
+    }
+
+    /**
+     * Returns the entries in {@code contentMap} whose blob SHA differs from the corresponding existing file
+     * in the target branch, or that have no corresponding file.
+     */
+    private static Map<String, FileContent> getChangedContent(RepoState state, Map<String, FileContent> contentMap) {
+        Map<String, FileContent> result = new LinkedHashMap<>();
+        for (Map.Entry<String, FileContent> entry : contentMap.entrySet()) {
+            ExistingFile existing = state.existingFiles().get(entry.getKey());
+            if (existing == null || !entry.getValue().blobSha().equals(existing.blobSha())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a single commit on top of the target branch that adds or updates all the entries in {@code contentMap},
+     * using the Git Data API (blobs, one tree, one commit) rather than one Contents API commit per file.
+     *
+     * @return the SHA-1 of the new commit, which is not yet referenced by any branch
+     */
+    @SuppressWarnings("deprecation") // GHTreeBuilder has no non-deprecated way to add an entry for an existing blob
+    private String commitContent(GHRepository repo, RepoState state, Map<String, FileContent> contentMap) throws IOException {
+        GHTreeBuilder treeBuilder = repo.createTree().baseTree(state.baseTreeSha());
+        for (Map.Entry<String, FileContent> entry : contentMap.entrySet()) {
+            ExistingFile existing = state.existingFiles().get(entry.getKey());
+            if (!updateExisting && (existing != null
+                    || (!state.complete() && getCurrentSha(repo, state.branchName(), entry.getKey()) != null))) {
+                throw new IllegalStateException(
+                        String.format("Repository %s already has content with path %s in branch %s; " +
+                                "the --update-existing option must be used to update content",
+                                repo.getName(), entry.getKey(), state.branchName()));
+            }
+            // Preserve the executable bit of any file we are replacing, as the Contents API would
+            boolean executable = existing != null && existing.executable();
+            if (credentials != null) {
+                treeBuilder.shaEntry(entry.getKey(), uploadBlob(repo, entry.getKey(), entry.getValue()), executable);
+            } else {
+                treeBuilder.add(entry.getKey(), Files.readAllBytes(entry.getValue().source()), executable);
+            }
+        }
+        GHTree tree = treeBuilder.create();
+        return repo.createCommit()
+                .message(getPRMessage())
+                .tree(tree.getSha())
+                .parent(state.baseSha())
+                .create()
+                .getSHA1();
+    }
+
+    /**
+     * Creates a blob, streaming the file's base64 encoded content into the request body
+     *
+     * @return the blob's SHA-1
+     */
+    private String uploadBlob(GHRepository repo, String contentPath, FileContent content) throws IOException {
+        URL url = URI.create(credentials.endpoint() + "/repos/" + repo.getFullName() + "/git/blobs").toURL();
+        try (GitHubConnectorResponse response = clientOptions.connector().send(new BlobUploadRequest(url, credentials.authorization(), content))) {
+            if (response.statusCode() != 201) {
+                throw new HttpException(String.format("Failed to create blob for %s in repository %s: HTTP %d",
+                        contentPath, repo.getName(), response.statusCode()), response.statusCode(), null, url.toString());
+            }
+            String sha;
+            try (InputStream in = response.bodyStream()) {
+                sha = MAPPER.readTree(in).path("sha").asText();
+            }
+            if (!content.blobSha().equals(sha)) {
+                throw new IllegalStateException(String.format("%s has changed since it was ingested", content.source()));
+            }
+            return sha;
         }
     }
 
@@ -282,4 +888,504 @@ public class GitFileAdder implements Runnable {
         }
         return sb.toString();
     }
+
+    /**
+     * A file to add to each repository, along with its git blob SHA-1
+     */
+    record FileContent(Path source, long size, String blobSha) {
+
+        private static FileContent of(Path source) throws IOException {
+            long size = Files.size(source);
+            return new FileContent(source, size, gitBlobSha(source, size));
+        }
+    }
+
+    /**
+     * Request to create a blob via the Git Data API. Its body is streamed by {@link StreamingConnector}.
+     */
+    private record BlobUploadRequest(URL url, String authorization, FileContent content) implements GitHubConnectorRequest {
+        private static final byte[] PREFIX = "{\"encoding\":\"base64\",\"content\":\"".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SUFFIX = "\"}".getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        public String method() {
+            return "POST";
+        }
+
+        @Override
+        public Map<String, List<String>> allHeaders() {
+            Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.put("Authorization", List.of(authorization));
+            headers.put("Accept", List.of("application/vnd.github+json"));
+            return headers;
+        }
+
+        @Override
+        public String header(String name) {
+            List<String> values = allHeaders().get(name);
+            return values == null ? null : String.join(",", values);
+        }
+
+        @Override
+        public String contentType() {
+            return "application/json";
+        }
+
+        /**
+         * The same bytes {@link StreamingConnector} writes, for any connector that reads the body itself, e.g. to
+         * send it again. The file is read, and encoded, a chunk at a time.
+         */
+        @Override
+        public InputStream body() {
+            return new SequenceInputStream(Collections.enumeration(List.of(new ByteArrayInputStream(PREFIX),
+                    new Base64FileInputStream(content.source()), new ByteArrayInputStream(SUFFIX))));
+        }
+
+        @Override
+        public boolean hasBody() {
+            return true;
+        }
+
+        private RequestBody requestBody() {
+            return new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return MediaType.get(BlobUploadRequest.this.contentType());
+                }
+
+                @Override
+                public long contentLength() {
+                    return PREFIX.length + 4 * ((content.size() + 2) / 3) + SUFFIX.length;
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    sink.write(PREFIX);
+                    // Closing the encoder writes any padding; the sink itself is closed by OkHttp
+                    OutputStream unclosable = new FilterOutputStream(sink.outputStream()) {
+                        @Override
+                        public void close() throws IOException {
+                            flush();
+                        }
+                    };
+                    try (OutputStream encoder = Base64.getEncoder().wrap(unclosable)) {
+                        Files.copy(content.source(), encoder);
+                    }
+                    sink.write(SUFFIX);
+                }
+            };
+        }
+    }
+
+    /**
+     * Reads a file base64 encoded. The file is read in chunks that are a multiple of 3 bytes long, so the chunks'
+     * encodings join up without padding until the last one.
+     */
+    private static class Base64FileInputStream extends InputStream {
+        private static final int CHUNK_SIZE = 3 * 8192;
+
+        private final Path file;
+        private InputStream in;
+        private byte[] encoded = new byte[0];
+        private int position;
+        private boolean eof;
+
+        private Base64FileInputStream(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? encoded[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, encoded.length - position);
+            System.arraycopy(encoded, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * @return whether there are encoded bytes left to read
+         */
+        private boolean fill() throws IOException {
+            while (position == encoded.length) {
+                if (eof) {
+                    return false;
+                }
+                if (in == null) {
+                    in = Files.newInputStream(file);
+                }
+                byte[] chunk = in.readNBytes(CHUNK_SIZE);
+                eof = chunk.length < CHUNK_SIZE;
+                encoded = Base64.getEncoder().encode(chunk);
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Sends {@link BlobUploadRequest}s directly with OkHttp so their bodies are streamed from disk;
+     * {@link OkHttpGitHubConnector} reads request bodies fully into memory. Other requests go to the delegate.
+     */
+    private static class StreamingConnector implements GitHubConnector {
+        private final OkHttpClient client;
+        private final GitHubConnector delegate;
+
+        private StreamingConnector(OkHttpClient client, GitHubConnector delegate) {
+            this.client = client;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public GitHubConnectorResponse send(GitHubConnectorRequest request) throws IOException {
+            if (!(request instanceof BlobUploadRequest upload)) {
+                return delegate.send(request);
+            }
+            Request.Builder builder = new Request.Builder()
+                    .url(request.url())
+                    .post(upload.requestBody());
+            request.allHeaders().forEach((name, values) -> builder.header(name, String.join(",", values)));
+            Response response = client.newCall(builder.build()).execute();
+            return new GitHubConnectorResponse(request, response.code(), response.headers().toMultimap()) {
+                @Override
+                public InputStream bodyStream() {
+                    ResponseBody body = response.body();
+                    return body == null ? InputStream.nullInputStream() : body.byteStream();
+                }
+
+                @Override
+                public void close() {
+                    response.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * A repository that may be updated or rolled back. A GraphQL listing gives only what selecting and inspecting the
+     * repository needs, so its {@link GHRepository} is looked up the first time the repository is changed. Each
+     * candidate is processed by a single worker.
+     */
+    private static final class Candidate {
+        private final GitHub github;
+        private final String fullName;
+        private final String name;
+        private final String defaultBranch;
+        private final boolean archived;
+        private GHRepository repository;
+
+        private Candidate(GHRepository repository) {
+            this.github = null;
+            this.fullName = repository.getFullName();
+            this.name = repository.getName();
+            this.defaultBranch = repository.getDefaultBranch();
+            this.archived = repository.isArchived();
+            this.repository = repository;
+        }
+
+        /**
+         * @param listed a repository listed with its default branch
+         */
+        private Candidate(GitHub github, String organization, GitHubRepositoryListing.Repository listed) {
+            this.github = github;
+            this.fullName = organization + "/" + listed.name();
+            this.name = listed.name();
+            this.defaultBranch = listed.defaultBranch();
+            this.archived = listed.archived();
+        }
+
+        private String name() {
+            return name;
+        }
+
+        private String defaultBranch() {
+            return defaultBranch;
+        }
+
+        private boolean archived() {
+            return archived;
+        }
+
+        private GHRepository repository() throws IOException {
+            if (repository == null) {
+                repository = github.getRepository(fullName);
+            }
+            return repository;
+        }
+    }
+
+    /**
+     * What the write phase needs to know about a repository's target branch before changing it
+     *
+     * @param existingFiles     files in the target branch with the same path as content being added
+     * @param complete          whether a path missing from {@code existingFiles} is known not to exist
+     * @param topicBranchExists whether the topic branch is known to already exist
+     * @param openPullRequest   URL of an open PR from the topic branch, or {@code null}
+     */
+    private record RepoState(String branchName, String baseSha, String baseTreeSha,
+                             Map<String, ExistingFile> existingFiles, boolean complete,
+                             boolean topicBranchExists, String openPullRequest) {
+    }
+
+    private record ExistingFile(String blobSha, boolean executable) {
+    }
+
+    /**
+     * What {@code --rollback} reverted in a repository
+     *
+     * @param closedPullRequests URLs of the PRs that were closed
+     * @param branchDeleted      whether the topic branch was deleted
+     */
+    private record Reverted(List<String> closedPullRequests, boolean branchDeleted) {
+        @Override
+        public String toString() {
+            return (closedPullRequests.isEmpty() ? "no open PR" : "closed " + String.join(", ", closedPullRequests))
+                    + (branchDeleted ? "; deleted topic branch" : "; topic branch not deleted");
+        }
+    }
+
+    private enum Outcome {
+        SUBMITTED,
+        /** The topic branch, and any PR from it, were removed by {@code --rollback} */
+        REVERTED,
+        SKIPPED,
+        FAILED
+    }
+
+    /**
+     * Runs per-repository tasks, either inline on the calling thread (parallelism of 1)
+     * or on virtual threads with at most {@code parallelism} tasks in flight at once.
+     */
+    private static class RepositoryWorkers implements AutoCloseable {
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final Map<Outcome, AtomicInteger> outcomes = new EnumMap<>(Outcome.class);
+
+        private RepositoryWorkers(int parallelism) {
+            for (Outcome outcome : Outcome.values()) {
+                outcomes.put(outcome, new AtomicInteger());
+            }
+            if (parallelism > 1) {
+                this.executor = Executors.newVirtualThreadPerTaskExecutor();
+                this.permits = new Semaphore(parallelism);
+            } else {
+                this.executor = null;
+                this.permits = null;
+            }
+        }
+
+        private void submit(Supplier<Outcome> task) throws InterruptedException {
+            if (executor == null) {
+                run(task);
+            } else {
+                // Acquire before submitting so we don't create a virtual thread per repository up front
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        run(task);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        private void run(Supplier<Outcome> task) {
+            outcomes.get(task.get()).incrementAndGet();
+        }
+
+        private void awaitCompletion() {
+            if (executor != null) {
+                executor.close();
+            }
+        }
+
+        private int count(Outcome outcome) {
+            return outcomes.get(outcome).get();
+        }
+
+        @Override
+        public void close() {
+            awaitCompletion();
+        }
+    }
+
+    /**
+     * Stages of the processing of a repository that are recorded in the {@link RunJournal}
+     */
+    private enum Stage {
+        /** The commit with the new content was created; detail is the commit SHA-1 */
+        COMMITTED,
+        /** The topic branch was created pointing at the commit; detail is the commit SHA-1 */
+        REF_CREATED,
+        /** The PR was opened; detail is the PR URL */
+        PR_OPENED,
+        /** All files already existed with identical content; detail is the base branch */
+        SKIPPED,
+        /** Processing failed and the topic branch was deleted, so a resumed run must start over */
+        FAILED,
+        /**
+         * {@code --rollback} closed any PR from the topic branch and deleted the branch, so a resumed run must start
+         * over whatever files were added; recorded with {@link RunJournal#ANY_CONTENT} as the content hash
+         */
+        ROLLED_BACK
+    }
+
+    /**
+     * Append-only record of the progress made for each repository. Each line holds the journal key (organization,
+     * topic branch and content hash), the repository name, the {@link Stage} reached and a stage-specific detail,
+     * separated by tabs. Every line is forced to disk before the next API call, so after a crash the journal
+     * reflects everything that was done. A {@link Stage#ROLLED_BACK} line erases the repository's earlier entries for
+     * the organization and topic branch, whatever their files.
+     */
+    private static class RunJournal implements AutoCloseable {
+        /** Content hash of the journal key of entries that apply to any set of files */
+        private static final String ANY_CONTENT = "*";
+
+        private final FileChannel channel;
+        private final String key;
+        private final Map<String, Entry> previous;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private record Entry(Stage stage, String detail) {
+
+            private static final Pattern SHA = Pattern.compile("[0-9a-f]{40}");
+
+            /**
+             * @return whether the detail has the form its stage records
+             */
+            boolean isValid() {
+                return switch (stage) {
+                    case COMMITTED, REF_CREATED -> SHA.matcher(detail).matches();
+                    case PR_OPENED, SKIPPED -> !detail.isEmpty();
+                    case FAILED, ROLLED_BACK -> true;
+                };
+            }
+        }
+
+        private RunJournal(FileChannel channel, String key, Map<String, Entry> previous) {
+            this.channel = channel;
+            this.key = key;
+            this.previous = previous;
+        }
+
+        /**
+         * Opens the journal, locking it for the whole run so that no other run, in this process or another, can
+         * append to it meanwhile
+         *
+         * @throws IOException if another run holds the journal
+         */
+        private static RunJournal open(Path file, String organization, String topicBranch, String contentHash,
+                                       boolean resume) throws IOException {
+            String key = organization + "\t" + topicBranch + "\t" + contentHash;
+            String rolledBack = organization + "\t" + topicBranch + "\t" + ANY_CONTENT + "\t";
+            Map<String, Entry> previous = new HashMap<>();
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // Held by another run in this process, e.g. another job of a GitScriptDaemon
+                    lock = null;
+                }
+                if (lock == null) {
+                    throw new IOException("Journal " + file + " is in use by another run; wait for it to finish or " +
+                            "use a different --journal-file");
+                }
+
+                // Read through the locked channel: closing any other descriptor of the file would release the lock
+                ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+                while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) >= 0) {
+                    // keep reading until the buffer is full
+                }
+                String journal = new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8);
+                // Every line is written with its terminator, so anything after the last one was torn by a crash
+                int end = journal.lastIndexOf('\n') + 1;
+                if (end < journal.length()) {
+                    log.finest("Ignoring partially written journal line " + journal.substring(end));
+                    // Drop it, so the next entry doesn't run on from it
+                    channel.truncate(journal.substring(0, end).getBytes(StandardCharsets.UTF_8).length);
+                }
+                // Nothing else writes while the lock is held, so appending is just writing at the end
+                channel.position(channel.size());
+                for (String line : journal.substring(0, end).split("\n")) {
+                    String[] fields = line.split("\t", -1);
+                    // Ignore entries for other runs
+                    if (fields.length == 6 && (line.startsWith(key + "\t") || line.startsWith(rolledBack))) {
+                        try {
+                            Entry entry = new Entry(Stage.valueOf(fields[4]), fields[5]);
+                            if (!entry.isValid()) {
+                                log.finest("Ignoring malformed journal line " + line);
+                            } else if (entry.stage() == Stage.ROLLED_BACK) {
+                                previous.remove(fields[3]);
+                            } else {
+                                previous.put(fields[3], entry);
+                            }
+                        } catch (IllegalArgumentException e) {
+                            log.finest("Ignoring malformed journal line " + line);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (resume) {
+                log.info("❇️ Resuming from journal " + file + " with " + previous.size() + " previously processed repositories");
+            } else {
+                if (!previous.isEmpty()) {
+                    log.warning("⚠️ Journal " + file + " has entries for " + previous.size() + " repositories from a previous run " +
+                            "with the same organization, topic branch and files; use --resume to continue that run");
+                }
+                previous.clear();
+            }
+            return new RunJournal(channel, key, previous);
+        }
+
+        private Entry previous(String repository) {
+            return previous.get(repository);
+        }
+
+        private void record(String repository, Stage stage, String detail) throws IOException {
+            String line = key + "\t" + repository + "\t" + stage + "\t" + (detail == null ? "" : detail) + "\n";
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            lock.lock();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warning("⚠️ Failed to close journal: " + e);
+            }
+        }
+    }
 }
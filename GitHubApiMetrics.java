@@ -0,0 +1,477 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+/**
+ * A {@link GitHubConnector} that records what every request sent through it cost, so slow runs can be explained
+ * and runs can be compared with each other.
+ * <p>
+ * Requests are grouped by endpoint: the method plus the request path with organization, repository, user and other
+ * names replaced by {@code *}, e.g. {@code GET /repos/*}{@code /*}{@code /collaborators/*}{@code /permission}. For each
+ * endpoint it records the number of requests, status codes, {@code 304 Not Modified} responses, failures, retries,
+ * response bytes and the latency until the response headers arrived. It also tracks how much of each rate limit
+ * resource's budget was consumed.
+ * <p>
+ * {@link #report} combines these with the time spent waiting in the {@link GitHubRequestScheduler}, the HTTP cache
+ * hit counts and the {@link GitHubMetadataStore} counts, as JSON and as a Prometheus text format file.
+ */
+public class GitHubApiMetrics implements GitHubConnector {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitHubApiMetrics.class.getPackageName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    /** Path segments kept as-is when deriving an endpoint; any other segment is a name or an id */
+    private static final Set<String> COLLECTIONS = Set.of("orgs", "organizations", "users", "user", "repos", "teams",
+            "team", "members", "collaborators", "permission", "contents", "branches", "git", "refs", "heads", "trees",
+            "blobs", "commits", "pulls", "issues", "comments", "graphql");
+
+    private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+    private final GitHubConnector delegate;
+    private final Instant started = Instant.now();
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, RateLimitUsage> rateLimits = new ConcurrentHashMap<>();
+    /**
+     * Requests whose last attempt failed; sending the same request object again, as {@link GitHubRetryPolicy} does,
+     * counts as a retry. Identical requests sent concurrently are separate objects, so they don't take each other's
+     * retries. Requests that are never sent again stay here, but only a run's failed requests do.
+     */
+    private final Set<GitHubConnectorRequest> failed = Collections.newSetFromMap(
+            Collections.synchronizedMap(new IdentityHashMap<>()));
+
+    public GitHubApiMetrics(GitHubConnector delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public GitHubConnectorResponse send(GitHubConnectorRequest request) throws IOException {
+        String endpoint = endpoint(request.method(), request.url().getPath());
+        Endpoint metrics = endpoints.computeIfAbsent(endpoint, Endpoint::new);
+        if (failed.remove(request)) {
+            metrics.retries.incrementAndGet();
+        }
+
+        long start = System.nanoTime();
+        GitHubConnectorResponse response;
+        try {
+            response = delegate.send(request);
+        } catch (IOException | RuntimeException e) {
+            metrics.record(System.nanoTime() - start, 0);
+            failed.add(request);
+            throw e;
+        }
+        int status = response.statusCode();
+        metrics.record(System.nanoTime() - start, status);
+        if (status >= 500 || status == 403 || status == 429) {
+            failed.add(request);
+        }
+        observeRateLimit(response, status);
+        return new MeasuredResponse(response, metrics.bytes);
+    }
+
+    /**
+     * Derives the endpoint a request is grouped by
+     */
+    static String endpoint(String method, String path) {
+        if (path.startsWith("/api/v3/")) {
+            path = path.substring("/api/v3".length());
+        } else if (path.equals("/api/graphql")) {
+            path = "/graphql";
+        }
+        StringBuilder sb = new StringBuilder(method).append(' ');
+        boolean wildcard = false;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (COLLECTIONS.contains(segment)) {
+                sb.append('/').append(segment);
+                wildcard = false;
+            } else if (!wildcard) {
+                // Collapse multi-segment names, such as content paths and qualified refs, into a single wildcard
+                sb.append("/*");
+                wildcard = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    private void observeRateLimit(GitHubConnectorResponse response, int status) {
+        String remaining = response.header("X-RateLimit-Remaining");
+        String reset = response.header("X-RateLimit-Reset");
+        String resource = response.header("X-RateLimit-Resource");
+        if (remaining == null || reset == null) {
+            return;
+        }
+        try {
+            String limit = response.header("X-RateLimit-Limit");
+            rateLimits.computeIfAbsent(resource == null ? "core" : resource, RateLimitUsage::new)
+                    .update(Long.parseLong(remaining.trim()), limit == null ? -1 : Long.parseLong(limit.trim()),
+                            Long.parseLong(reset.trim()), status != 304);
+        } catch (NumberFormatException e) {
+            log.fine("Ignoring unparseable rate limit headers remaining=" + remaining + " reset=" + reset);
+        }
+    }
+
+    /**
+     * Logs a summary and writes the full report to the given files
+     *
+     * @param json file for the JSON report, or {@code null}
+     * @param prometheus file for the Prometheus text format report, or {@code null}
+     */
+    public void report(GitHubRequestScheduler scheduler, okhttp3.Cache cache, GitHubMetadataStore store,
+                       Path json, Path prometheus) throws IOException {
+        Map<String, Object> report = toMap(scheduler, cache, store);
+        if (json != null) {
+            MAPPER.writeValue(json.toFile(), report);
+            log.info("📊 API metrics written to " + json);
+        }
+        if (prometheus != null) {
+            try (Writer writer = Files.newBufferedWriter(prometheus, StandardCharsets.UTF_8)) {
+                writePrometheus(writer, scheduler, cache, store);
+            }
+            log.info("📊 API metrics written to " + prometheus);
+        }
+        endpoints.values().stream()
+                .sorted((a, b) -> Long.compare(b.totalNanos(), a.totalNanos()))
+                .limit(5)
+                .forEach(e -> log.info("⏱️ " + e));
+    }
+
+    private Map<String, Object> toMap(GitHubRequestScheduler scheduler, okhttp3.Cache cache, GitHubMetadataStore store) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("started", started.toString());
+        report.put("duration_seconds", seconds(Duration.between(started, Instant.now()).toNanos()));
+        report.put("rate_limit_wait_seconds", seconds(scheduler.waitTime().toNanos()));
+        report.put("rate_limit_pauses", scheduler.pauses());
+
+        Map<String, Object> endpointMaps = new TreeMap<>();
+        for (Endpoint endpoint : endpoints.values()) {
+            endpointMaps.put(endpoint.name, endpoint.toMap());
+        }
+        report.put("endpoints", endpointMaps);
+
+        Map<String, Object> rateLimitMaps = new TreeMap<>();
+        for (RateLimitUsage usage : rateLimits.values()) {
+            rateLimitMaps.put(usage.resource, usage.toMap());
+        }
+        report.put("rate_limits", rateLimitMaps);
+
+        if (cache != null) {
+            Map<String, Object> cacheMap = new LinkedHashMap<>();
+            cacheMap.put("requests", cache.requestCount());
+            cacheMap.put("network", cache.networkCount());
+            cacheMap.put("hits", cache.hitCount());
+            cacheMap.put("hit_ratio", ratio(cache.hitCount(), cache.requestCount()));
+            report.put("http_cache", cacheMap);
+        }
+        if (store != null) {
+            Map<String, Object> storeMap = new LinkedHashMap<>();
+            long total = store.servedFromDisk() + store.revalidated() + store.fetched();
+            storeMap.put("served_from_disk", store.servedFromDisk());
+            storeMap.put("revalidated", store.revalidated());
+            storeMap.put("fetched", store.fetched());
+            storeMap.put("served_without_rate_limit_ratio", ratio(store.servedFromDisk() + store.revalidated(), total));
+            report.put("metadata_store", storeMap);
+        }
+        return report;
+    }
+
+    private void writePrometheus(Writer writer, GitHubRequestScheduler scheduler, okhttp3.Cache cache,
+                                 GitHubMetadataStore store) throws IOException {
+        writer.write("# HELP github_api_requests_total GitHub API requests sent, by endpoint and status (0 for failures)\n");
+        writer.write("# TYPE github_api_requests_total counter\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            for (Map.Entry<Integer, Long> status : endpoint.statusCounts().entrySet()) {
+                writer.write("github_api_requests_total{endpoint=\"" + escape(endpoint.name) + "\",status=\""
+                        + status.getKey() + "\"} " + status.getValue() + "\n");
+            }
+        }
+        writer.write("# HELP github_api_retries_total Requests sent again after a failure, by endpoint\n");
+        writer.write("# TYPE github_api_retries_total counter\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            writer.write("github_api_retries_total{endpoint=\"" + escape(endpoint.name) + "\"} " + endpoint.retries.get() + "\n");
+        }
+        writer.write("# HELP github_api_response_bytes_total Response body bytes received, by endpoint\n");
+        writer.write("# TYPE github_api_response_bytes_total counter\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            writer.write("github_api_response_bytes_total{endpoint=\"" + escape(endpoint.name) + "\"} " + endpoint.bytes.get() + "\n");
+        }
+        writer.write("# HELP github_api_request_duration_seconds Time until the response headers arrived, by endpoint\n");
+        writer.write("# TYPE github_api_request_duration_seconds summary\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            String label = "endpoint=\"" + escape(endpoint.name) + "\"";
+            long[] latencies = endpoint.sortedLatencies();
+            for (double quantile : QUANTILES) {
+                writer.write("github_api_request_duration_seconds{" + label + ",quantile=\"" + quantile + "\"} "
+                        + seconds(percentile(latencies, quantile)) + "\n");
+            }
+            writer.write("github_api_request_duration_seconds_sum{" + label + "} " + seconds(endpoint.totalNanos()) + "\n");
+            writer.write("github_api_request_duration_seconds_count{" + label + "} " + latencies.length + "\n");
+        }
+        writer.write("# HELP github_api_rate_limit_consumed Rate limit budget consumed during the run, by resource\n");
+        writer.write("# TYPE github_api_rate_limit_consumed counter\n");
+        for (RateLimitUsage usage : rateLimits.values()) {
+            writer.write("github_api_rate_limit_consumed{resource=\"" + escape(usage.resource) + "\"} " + usage.consumed() + "\n");
+        }
+        writer.write("# HELP github_api_rate_limit_wait_seconds Time requests spent waiting for the rate limit scheduler\n");
+        writer.write("# TYPE github_api_rate_limit_wait_seconds counter\n");
+        writer.write("github_api_rate_limit_wait_seconds " + seconds(scheduler.waitTime().toNanos()) + "\n");
+        if (cache != null) {
+            writer.write("# HELP github_api_http_cache_requests_total HTTP cache lookups, by result\n");
+            writer.write("# TYPE github_api_http_cache_requests_total counter\n");
+            writer.write("github_api_http_cache_requests_total{result=\"hit\"} " + cache.hitCount() + "\n");
+            writer.write("github_api_http_cache_requests_total{result=\"network\"} " + cache.networkCount() + "\n");
+        }
+        if (store != null) {
+            writer.write("# HELP github_api_metadata_store_requests_total Metadata store lookups, by result\n");
+            writer.write("# TYPE github_api_metadata_store_requests_total counter\n");
+            writer.write("github_api_metadata_store_requests_total{result=\"disk\"} " + store.servedFromDisk() + "\n");
+            writer.write("github_api_metadata_store_requests_total{result=\"revalidated\"} " + store.revalidated() + "\n");
+            writer.write("github_api_metadata_store_requests_total{result=\"fetched\"} " + store.fetched() + "\n");
+        }
+        writer.write("# HELP github_api_run_duration_seconds Duration of the run\n");
+        writer.write("# TYPE github_api_run_duration_seconds gauge\n");
+        writer.write("github_api_run_duration_seconds " + seconds(Duration.between(started, Instant.now()).toNanos()) + "\n");
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static double ratio(long count, long total) {
+        return total == 0 ? 0 : (double) count / total;
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    /**
+     * Counts for a single endpoint; requests that failed without a response are counted with status 0. Latencies are
+     * kept individually, so percentiles are exact; even very large runs make no more than a few hundred thousand
+     * requests.
+     */
+    private static final class Endpoint {
+        private final String name;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<Integer, Long> statuses = new TreeMap<>();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private long[] latencies = new long[16];
+        private int count;
+        private long totalNanos;
+
+        private Endpoint(String name) {
+            this.name = name;
+        }
+
+        private void record(long nanos, int status) {
+            lock.lock();
+            try {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = nanos;
+                totalNanos += nanos;
+                statuses.merge(status, 1L, Long::sum);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long[] sortedLatencies() {
+            lock.lock();
+            try {
+                long[] sorted = Arrays.copyOf(latencies, count);
+                Arrays.sort(sorted);
+                return sorted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Map<Integer, Long> statusCounts() {
+            lock.lock();
+            try {
+                return new TreeMap<>(statuses);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long totalNanos() {
+            lock.lock();
+            try {
+                return totalNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Map<String, Object> toMap() {
+            long[] sorted = sortedLatencies();
+            Map<Integer, Long> statusCounts = statusCounts();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("requests", sorted.length);
+            map.put("statuses", statusCounts);
+            map.put("not_modified", statusCounts.getOrDefault(304, 0L));
+            map.put("failures", statusCounts.getOrDefault(0, 0L));
+            map.put("retries", retries.get());
+            map.put("response_bytes", bytes.get());
+            map.put("total_seconds", seconds(totalNanos()));
+            for (double quantile : QUANTILES) {
+                map.put(String.format(Locale.ROOT, "p%.0f_seconds", quantile * 100), seconds(percentile(sorted, quantile)));
+            }
+            map.put("max_seconds", seconds(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            long[] sorted = sortedLatencies();
+            return String.format(Locale.ROOT, "%s: %d requests, %.1fs total, p50 %.0fms, p95 %.0fms, p99 %.0fms",
+                    name, sorted.length, seconds(totalNanos()), percentile(sorted, 0.5) / 1e6,
+                    percentile(sorted, 0.95) / 1e6, percentile(sorted, 0.99) / 1e6);
+        }
+    }
+
+    /**
+     * The budget of a rate limit resource consumed during the run, derived from the remaining budget reported in
+     * each reset window. Each window's first response is assumed to have cost one request unless it was a 304.
+     */
+    private static final class RateLimitUsage {
+        private final String resource;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long consumedInEarlierWindows;
+        private long windowReset = -1;
+        private long windowHighest;
+        private long windowLowest;
+        private long limit;
+
+        private RateLimitUsage(String resource) {
+            this.resource = resource;
+        }
+
+        private void update(long remaining, long limit, long reset, boolean counted) {
+            lock.lock();
+            try {
+                if (reset > windowReset) {
+                    consumedInEarlierWindows += windowConsumed();
+                    windowReset = reset;
+                    windowHighest = remaining + (counted ? 1 : 0);
+                    windowLowest = remaining;
+                } else if (reset == windowReset) {
+                    windowHighest = Math.max(windowHighest, remaining + (counted ? 1 : 0));
+                    windowLowest = Math.min(windowLowest, remaining);
+                }
+                this.limit = limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long windowConsumed() {
+            return windowReset < 0 ? 0 : windowHighest - windowLowest;
+        }
+
+        private long consumed() {
+            lock.lock();
+            try {
+                return consumedInEarlierWindows + windowConsumed();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Map<String, Object> toMap() {
+            lock.lock();
+            try {
+                Map<String, Object> map = new LinkedHashMap<>();
+                map.put("consumed", consumed());
+                map.put("remaining", windowLowest);
+                map.put("limit", limit);
+                map.put("reset", Instant.ofEpochSecond(windowReset).toString());
+                return map;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The delegate's response, counting the body bytes as they are read
+     */
+    private static final class MeasuredResponse extends GitHubConnectorResponse {
+        private final GitHubConnectorResponse response;
+        private final AtomicLong bytes;
+
+        private MeasuredResponse(GitHubConnectorResponse response, AtomicLong bytes) {
+            super(response.request(), response.statusCode(), response.allHeaders());
+            this.response = response;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream bodyStream() throws IOException {
+            InputStream in = response.bodyStream();
+            if (in == null) {
+                return null;
+            }
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytes.incrementAndGet();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int n = super.read(buffer, offset, length);
+                    if (n > 0) {
+                        bytes.addAndGet(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.GitHubBuilder;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.extras.okhttp3.OkHttpGitHubConnector;
+import picocli.CommandLine;
+
+/**
+ * Options for the HTTP client used to talk to GitHub, shared by all the scripts as a picocli mixin, along with the
+ * code that builds the client from them.
+ */
+public class GitHubClientOptions {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitHubClientOptions.class.getPackageName());
+
+    @CommandLine.Option(names = {
+            "--cache-dir" }, description = "Directory for the HTTP response cache, which is shared by all the scripts",
+            defaultValue = "${sys:user.home}/.cache/git-file-adder-cache")
+    private Path cacheDir;
+
+    @CommandLine.Option(names = {
+            "--cache-size" }, description = "Maximum size of the HTTP response cache in MB; 0 disables caching", defaultValue = "100")
+    private long cacheSizeMb;
+
+    @CommandLine.Option(names = {
+            "--connection-pool-size" }, description = "Maximum number of idle connections to keep open for reuse", defaultValue = "32")
+    private int connectionPoolSize;
+
+    @CommandLine.Option(names = {
+            "--http2" }, description = "Whether to use HTTP/2, which multiplexes concurrent requests over a single connection",
+            negatable = true, defaultValue = "true", fallbackValue = "true")
+    private boolean http2;
+
+    @CommandLine.Option(names = {
+            "--connect-timeout" }, description = "Connect timeout in seconds", defaultValue = "10")
+    private int connectTimeout;
+
+    @CommandLine.Option(names = {
+            "--read-timeout" }, description = "Read timeout in seconds", defaultValue = "60")
+    private int readTimeout;
+
+    @CommandLine.Option(names = {
+            "--write-timeout" }, description = "Write timeout in seconds", defaultValue = "60")
+    private int writeTimeout;
+
+    @CommandLine.Option(names = {
+            "--max-concurrent-requests" }, description = "Maximum number of GitHub API requests in flight at once",
+            defaultValue = "" + GitHubRequestScheduler.DEFAULT_MAX_CONCURRENT_REQUESTS)
+    private int maxConcurrentRequests;
+
+    @CommandLine.Option(names = {
+            "--reads-per-second" }, description = "Maximum rate of GitHub API requests while the rate limit budget is healthy",
+            defaultValue = "" + GitHubRequestScheduler.DEFAULT_MAX_READS_PER_SECOND)
+    private double readsPerSecond;
+
+    @CommandLine.Option(names = {
+            "--writes-per-second" }, description = "Maximum rate of content-creating GitHub API requests",
+            defaultValue = "" + GitHubRequestScheduler.DEFAULT_WRITES_PER_SECOND)
+    private double writesPerSecond;
+
+    @CommandLine.Option(names = {
+            "--max-retries" }, description = "Maximum number of times a GitHub API request failing for a transient reason (a 5xx, a secondary rate limit or a network error) is retried",
+            defaultValue = "" + GitHubRetryPolicy.DEFAULT_MAX_RETRIES)
+    private int maxRetries;
+
+    @CommandLine.Option(names = {
+            "--circuit-breaker-threshold" }, description = "Number of transient failures among the last 20 GitHub API requests that pauses all requests; 0 disables the circuit breaker",
+            defaultValue = "" + GitHubRetryPolicy.DEFAULT_BREAKER_THRESHOLD)
+    private int breakerThreshold;
+
+    @CommandLine.Option(names = {
+            "--circuit-breaker-pause" }, description = "Seconds all GitHub API requests are paused for when the circuit breaker opens; doubled each time it reopens",
+            defaultValue = "30")
+    private long breakerPauseSeconds;
+
+    @CommandLine.Option(names = {
+            "--metadata-store" }, description = "Whether to keep organization metadata (repository, team, member and collaborator listings and user profiles) in an on-disk store shared by all the scripts, revalidating it with conditional requests",
+            negatable = true, defaultValue = "true", fallbackValue = "true")
+    private boolean metadataStore;
+
+    @CommandLine.Option(names = {
+            "--metadata-dir" }, description = "Directory for the organization metadata store",
+            defaultValue = "${sys:user.home}/.cache/git-file-adder-metadata")
+    private Path metadataDir;
+
+    @CommandLine.Option(names = {
+            "--max-age" }, description = "Serve organization metadata stored less than this many seconds ago without contacting GitHub; 0 always revalidates it",
+            defaultValue = "0")
+    private long maxAge;
+
+    @CommandLine.Option(names = {
+            "--metadata-max-size" }, description = "Maximum size of the organization metadata store in MB, enforced when a script starts by deleting the least recently stored entries; 0 keeps every entry",
+            defaultValue = "500")
+    private long metadataMaxSizeMb;
+
+    @CommandLine.Option(names = {
+            "--metrics-json" }, description = "Write per-endpoint API request metrics for the run to this file as JSON")
+    private Path metricsJson;
+
+    @CommandLine.Option(names = {
+            "--metrics-prometheus" }, description = "Write per-endpoint API request metrics for the run to this file in Prometheus text format")
+    private Path metricsPrometheus;
+
+    private OkHttpClient httpClient;
+
+    private GitHubRequestScheduler scheduler;
+
+    private GitHubRetryPolicy retryPolicy;
+
+    private GitHubMetadataStore store;
+
+    private GitHubApiMetrics metrics;
+
+    /** What is kept between runs when the scripts run as jobs of a GitScriptDaemon, or {@code null} */
+    private static volatile Resident resident;
+
+    /**
+     * Makes every client built from now on share the resident resources, rather than building its own
+     */
+    public static void keepResident(Resident resources) {
+        resident = resources;
+    }
+
+    /**
+     * Set up GitHub client with caching to reduce API calls
+     */
+    public GitHub setupGitHubClient() throws IOException {
+        return setupGitHubClient((client, connector) -> connector);
+    }
+
+    /**
+     * Set up GitHub client with caching to reduce API calls
+     *
+     * @param decorator function that may wrap the connector built around the HTTP client; requests sent via the
+     *                  returned connector are retried by the {@link GitHubRetryPolicy} and paced by the
+     *                  {@link GitHubRequestScheduler}. Metadata requests made via the returned client may instead be
+     *                  served by the {@link GitHubMetadataStore}.
+     */
+    public GitHub setupGitHubClient(ConnectorDecorator decorator) throws IOException {
+        httpClient = buildHttpClient();
+
+        log.finest("Creating GitHub API connector");
+        metrics = new GitHubApiMetrics(decorator.apply(httpClient, new OkHttpGitHubConnector(httpClient)));
+        // A resident client shares the pacing of every other client using the same credentials, as GitHub's limits
+        // apply to the credentials; its own options can only lower the rate
+        scheduler = resident != null
+                ? new GitHubRequestScheduler(metrics, resident.pacing(credentials()), maxConcurrentRequests,
+                        readsPerSecond, writesPerSecond)
+                : new GitHubRequestScheduler(metrics, maxConcurrentRequests, readsPerSecond, writesPerSecond);
+        // Retries go back through the scheduler, so they are paced like any other request
+        retryPolicy = new GitHubRetryPolicy(scheduler, maxRetries, breakerThreshold, Duration.ofSeconds(breakerPauseSeconds));
+
+        GitHubConnector connector = retryPolicy;
+        if (!metadataStore) {
+            log.finest("The organization metadata store is disabled");
+        } else if (ensureDirectoryExists(metadataDir)) {
+            log.finest("Metadata store directory: " + metadataDir);
+            store = new GitHubMetadataStore(retryPolicy, metadataDir, Duration.ofSeconds(maxAge),
+                    metadataMaxSizeMb * 1024 * 1024, resident == null ? null : resident.metadata);
+            connector = store;
+        } else {
+            log.finest("Cannot create metadata store directory at " + metadataDir + " -- organization metadata will not be stored");
+        }
+
+        GitHub gh = GitHubBuilder.fromPropertyFile()
+                .withConnector(connector)
+                .build();
+        log.finest("Connected successfully");
+        return gh;
+    }
+
+    /**
+     * The credentials the client will use, or {@code null} components if they can't be read here, e.g. because
+     * github-api will make anonymous requests
+     */
+    private static GitHubCredentials credentials() {
+        try {
+            return GitHubCredentials.fromPropertyFile();
+        } catch (IOException e) {
+            return new GitHubCredentials(null, null);
+        }
+    }
+
+    private OkHttpClient buildHttpClient() {
+        // A resident client's connections, and so its TLS sessions, are shared with every client built from it
+        OkHttpClient.Builder clientBuilder = (resident != null ? resident.httpClient.newBuilder()
+                : new OkHttpClient.Builder().connectionPool(new ConnectionPool(connectionPoolSize, 5, TimeUnit.MINUTES)))
+                .connectTimeout(Duration.ofSeconds(connectTimeout))
+                .readTimeout(Duration.ofSeconds(readTimeout))
+                .writeTimeout(Duration.ofSeconds(writeTimeout));
+
+        // OkHttpGitHubConnector executes calls synchronously, so the dispatcher limits only matter for any
+        // asynchronous calls; keep them consistent with the limit the scheduler applies to everything else
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConcurrentRequests);
+        dispatcher.setMaxRequestsPerHost(maxConcurrentRequests);
+        clientBuilder.dispatcher(dispatcher);
+
+        if (!http2) {
+            clientBuilder.protocols(List.of(Protocol.HTTP_1_1));
+        }
+
+        if (cacheSizeMb <= 0) {
+            log.finest("Caching is disabled -- will use a non-caching GitHub API connector");
+        } else if (ensureDirectoryExists(cacheDir)) {
+            log.finest("Cache directory: " + cacheDir);
+            Cache cache = resident != null ? resident.cache(cacheDir, cacheSizeMb * 1024 * 1024)
+                    : new Cache(cacheDir.toFile(), cacheSizeMb * 1024 * 1024);
+            clientBuilder.cache(cache);
+        } else {
+            log.finest("Cannot create cache directory at " + cacheDir + " -- will use a non-caching GitHub API connector");
+        }
+        return clientBuilder.build();
+    }
+
+    private static boolean ensureDirectoryExists(Path path) {
+        if (!Files.exists(path)) {
+            try {
+                Files.createDirectories(path);
+                return true;
+            } catch (IOException e) {
+                log.warning("⚠️ Failed to create directory: " + path + " -- it will not be used for caching");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The HTTP client built by {@link #setupGitHubClient}
+     */
+    public OkHttpClient httpClient() {
+        return httpClient;
+    }
+
+    /**
+     * The scheduler through which all requests made by the client built by {@link #setupGitHubClient} are sent
+     */
+    public GitHubRequestScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * The connector for requests the scripts send themselves rather than via github-api, e.g. GraphQL queries, so
+     * they are retried and paced like the requests made by the client built by {@link #setupGitHubClient}
+     */
+    public GitHubConnector connector() {
+        return retryPolicy;
+    }
+
+    /**
+     * The connector used by the client built by {@link #setupGitHubClient}, for metadata listings the scripts fetch
+     * themselves, so they are kept in the {@link GitHubMetadataStore} (if it is enabled) like github-api's
+     */
+    public GitHubConnector metadataConnector() {
+        return store != null ? store : retryPolicy;
+    }
+
+    /**
+     * Logs a summary of the API requests made by the client built by {@link #setupGitHubClient}, and writes the
+     * detailed metrics to any files requested. Called at the end of a run.
+     */
+    public void report() {
+        if (scheduler == null) {
+            return;
+        }
+        log.info("GitHub API usage: " + scheduler + "; " + retryPolicy + (store == null ? "" : "; metadata store: " + store));
+        try {
+            metrics.report(scheduler, httpClient.cache(), store, metricsJson, metricsPrometheus);
+        } catch (IOException e) {
+            log.warning("⚠️ Failed to write API metrics: " + e);
+        }
+    }
+
+    /**
+     * The resources a long-running process keeps warm for all the clients it builds: a connection pool, so
+     * connections and their TLS sessions outlive each run, the HTTP caches, and the most recently used organization
+     * metadata. Clients using the same credentials also share the pacing of their requests, so running several at
+     * once doesn't multiply the request rate. Each client still has its own timeouts, retries and metrics, taken from
+     * its options.
+     */
+    public static final class Resident {
+        private final OkHttpClient httpClient;
+        private final Map<Path, Cache> caches = new ConcurrentHashMap<>();
+        private final GitHubMetadataStore.Resident metadata;
+        private final Map<GitHubCredentials, GitHubRequestScheduler.Pacing> pacings = new ConcurrentHashMap<>();
+        private final int maxConcurrentRequests;
+        private final double readsPerSecond;
+        private final double writesPerSecond;
+
+        /**
+         * @param connectionPoolSize    maximum number of idle connections to keep open, in place of each client's
+         *                              {@code --connection-pool-size}
+         * @param metadataEntries       number of organization metadata entries to keep in memory
+         * @param maxConcurrentRequests maximum number of requests in flight at once for all the clients using the
+         *                              same credentials; each client's {@code --max-concurrent-requests} can only
+         *                              lower it
+         * @param readsPerSecond        maximum rate of requests for all the clients using the same credentials
+         * @param writesPerSecond       maximum rate of content-creating requests for all the clients using the same
+         *                              credentials
+         */
+        public Resident(int connectionPoolSize, int metadataEntries, int maxConcurrentRequests,
+                        double readsPerSecond, double writesPerSecond) {
+            this.httpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(connectionPoolSize, 5, TimeUnit.MINUTES))
+                    .build();
+            this.metadata = new GitHubMetadataStore.Resident(metadataEntries);
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            this.readsPerSecond = readsPerSecond;
+            this.writesPerSecond = writesPerSecond;
+        }
+
+        private GitHubRequestScheduler.Pacing pacing(GitHubCredentials credentials) {
+            return pacings.computeIfAbsent(credentials,
+                    c -> new GitHubRequestScheduler.Pacing(maxConcurrentRequests, readsPerSecond, writesPerSecond));
+        }
+
+        /**
+         * An HTTP cache can only be opened once per directory in a process, so clients using the same directory
+         * share one; the size it was first opened with applies
+         */
+        private Cache cache(Path directory, long maxSize) {
+            return caches.computeIfAbsent(directory.toAbsolutePath().normalize(), dir -> new Cache(dir.toFile(), maxSize));
+        }
+
+        /**
+         * Number of idle connections kept open for reuse
+         */
+        public int idleConnections() {
+            return httpClient.connectionPool().idleConnectionCount();
+        }
+
+        /**
+         * Number of organization metadata entries kept in memory
+         */
+        public int metadataEntries() {
+            return metadata.size();
+        }
+
+        /**
+         * Closes the connections and HTTP caches
+         */
+        public void close() {
+            httpClient.connectionPool().evictAll();
+            for (Cache cache : caches.values()) {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    log.fine("Failed to close the HTTP cache in " + cache.directory() + ": " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps the {@link GitHubConnector} built around an {@link OkHttpClient}
+     */
+    @FunctionalInterface
+    public interface ConnectorDecorator {
+        GitHubConnector apply(OkHttpClient client, GitHubConnector connector);
+    }
+}
@@ -0,0 +1,37 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * The REST endpoint and {@code Authorization} header value configured in the {@code ~/.github} property file used
+ * by {@code GitHubBuilder.fromPropertyFile()}, for requests that are made without going through github-api
+ * (GraphQL queries and streamed uploads).
+ */
+public record GitHubCredentials(String endpoint, String authorization) {
+
+    public static final String DEFAULT_ENDPOINT = "https://api.github.com";
+
+    public static GitHubCredentials fromPropertyFile() throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(Path.of(System.getProperty("user.home"), ".github").toFile())) {
+            props.load(in);
+        }
+        String authorization;
+        if (props.getProperty("oauth") != null) {
+            authorization = "token " + props.getProperty("oauth");
+        } else if (props.getProperty("jwt") != null) {
+            authorization = "Bearer " + props.getProperty("jwt");
+        } else {
+            throw new IOException("An oauth or jwt token in ~/.github is required");
+        }
+        String endpoint = props.getProperty("endpoint");
+        if (endpoint == null || endpoint.isEmpty()) {
+            endpoint = DEFAULT_ENDPOINT;
+        } else if (endpoint.endsWith("/")) {
+            endpoint = endpoint.substring(0, endpoint.length() - 1);
+        }
+        return new GitHubCredentials(endpoint, authorization);
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+/**
+ * Minimal client for GitHub's GraphQL API. Queries are sent through the same {@link GitHubConnector} as the
+ * REST calls made via github-api, so they share its HTTP client and are paced by the {@link GitHubRequestScheduler}.
+ */
+public class GitHubGraphQL {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitHubGraphQL.class.getPackageName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final GitHubConnector connector;
+    private final URL url;
+    private final String authorization;
+
+    public GitHubGraphQL(GitHubConnector connector, URL url, String authorization) {
+        this.connector = connector;
+        this.url = url;
+        this.authorization = authorization;
+    }
+
+    /**
+     * Creates a client using the given credentials
+     */
+    public static GitHubGraphQL create(GitHubConnector connector, GitHubCredentials credentials) throws IOException {
+        return new GitHubGraphQL(connector, graphQLUrl(credentials.endpoint()), credentials.authorization());
+    }
+
+    /**
+     * Derives the GraphQL endpoint from a REST API endpoint, e.g. {@code https://host/api/v3} for
+     * GitHub Enterprise maps to {@code https://host/api/graphql}
+     */
+    static URL graphQLUrl(String restEndpoint) throws IOException {
+        String endpoint = restEndpoint;
+        if (endpoint.endsWith("/api/v3")) {
+            endpoint = endpoint.substring(0, endpoint.length() - "/v3".length());
+        }
+        return URI.create(endpoint + "/graphql").toURL();
+    }
+
+    /**
+     * Quotes a value for use as a string literal in a GraphQL document. GraphQL string escapes are a superset of
+     * what JSON produces, so a JSON string is a valid GraphQL string.
+     */
+    public static String literal(String value) {
+        try {
+            return MAPPER.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Executes a query.
+     *
+     * @return the {@code data} element of the response. Fields that could not be resolved (e.g. a repository
+     * that doesn't exist) are {@code null}; the corresponding errors are logged but do not fail the query.
+     * @throws IOException if the request fails or the response has no data at all
+     */
+    public JsonNode query(String query) throws IOException {
+        byte[] body = MAPPER.writeValueAsBytes(Map.of("query", query));
+        try (GitHubConnectorResponse response = connector.send(new Request(url, authorization, body))) {
+            JsonNode root;
+            try (InputStream in = response.bodyStream()) {
+                root = in == null ? null : MAPPER.readTree(in);
+            }
+            if (response.statusCode() != 200 || root == null) {
+                throw new IOException("GraphQL query failed with status " + response.statusCode()
+                        + (root == null ? "" : ": " + root));
+            }
+            JsonNode data = root.get("data");
+            JsonNode errors = root.get("errors");
+            if (data == null || data.isNull()) {
+                throw new IOException("GraphQL query failed: " + errors);
+            }
+            if (errors != null) {
+                for (JsonNode error : errors) {
+                    log.fine("GraphQL error at " + error.path("path") + ": " + error.path("message").asText());
+                }
+            }
+            return data;
+        }
+    }
+
+    private record Request(URL url, String authorization, byte[] bytes) implements GitHubConnectorRequest {
+
+        @Override
+        public String method() {
+            return "POST";
+        }
+
+        @Override
+        public Map<String, List<String>> allHeaders() {
+            Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.put("Authorization", List.of(authorization));
+            headers.put("Accept", List.of("application/json"));
+            headers.put("Content-Type", List.of(contentType()));
+            return headers;
+        }
+
+        @Override
+        public String header(String name) {
+            List<String> values = allHeaders().get(name);
+            return values == null ? null : String.join(",", values);
+        }
+
+        @Override
+        public String contentType() {
+            return "application/json";
+        }
+
+        @Override
+        public InputStream body() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public boolean hasBody() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+/**
+ * A {@link GitHubConnector} that keeps organization metadata -- repository, team, member and collaborator listings,
+ * collaborator permissions and user profiles -- in an on-disk store shared by all the scripts.
+ * <p>
+ * Unlike the HTTP cache, whose size bound a single large organization can fill, entries are only evicted when a store
+ * is opened, oldest first, once the store as a whole outgrows its maximum size, so the metadata for a large
+ * organization survives from one run to the next. An entry younger than the configured maximum age is served
+ * without contacting GitHub at all. Older entries are revalidated with a conditional request using the stored
+ * {@code ETag} (or {@code Last-Modified}); a {@code 304 Not Modified} response doesn't count against the rate limit,
+ * and the stored response is served in its place.
+ * <p>
+ * Requests for anything else, and all non-{@code GET} requests, are passed straight to the delegate.
+ * <p>
+ * A process that runs the scripts many times, such as GitScriptDaemon, can also keep recently used entries in
+ * memory with a {@link Resident} shared by all its stores, so they aren't read back from disk on every request.
+ */
+public class GitHubMetadataStore implements GitHubConnector {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitHubMetadataStore.class.getPackageName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** REST paths (optionally prefixed with GitHub Enterprise's {@code /api/v3}) whose responses are stored */
+    private static final Pattern METADATA_PATHS = Pattern.compile("(/api/v3)?/("
+            + "orgs/[^/]+(/repos|/teams|/members|/teams/[^/]+/members)?"
+            + "|organizations/\\d+/team/\\d+/members"
+            + "|teams/\\d+/members"
+            + "|repos/[^/]+/[^/]+(/teams|/collaborators|/collaborators/[^/]+/permission)?"
+            + "|users/[^/]+"
+            + "|user)");
+
+    /** Response headers needed to replay a stored response; rate limit headers are deliberately not kept */
+    private static final List<String> STORED_HEADERS = List.of("Content-Type", "Link", "ETag", "Last-Modified");
+
+    private final GitHubConnector delegate;
+    private final Path directory;
+    private final long maxAgeMillis;
+    private final Resident resident;
+    private final AtomicLong fresh = new AtomicLong();
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong fetched = new AtomicLong();
+
+    /**
+     * @param delegate connector for requests that can't be served from the store
+     * @param directory directory holding the store; it is created if necessary
+     * @param maxAge age below which stored entries are served without revalidation
+     */
+    public GitHubMetadataStore(GitHubConnector delegate, Path directory, Duration maxAge) throws IOException {
+        this(delegate, directory, maxAge, 0, null);
+    }
+
+    /**
+     * @param delegate connector for requests that can't be served from the store
+     * @param directory directory holding the store; it is created if necessary
+     * @param maxAge age below which stored entries are served without revalidation
+     * @param maxSize size in bytes the store is pruned to, least recently stored entries first; 0 keeps every entry
+     * @param resident entries kept in memory as well as on disk, or {@code null}
+     */
+    public GitHubMetadataStore(GitHubConnector delegate, Path directory, Duration maxAge, long maxSize,
+                               Resident resident) throws IOException {
+        this.delegate = delegate;
+        this.directory = Files.createDirectories(directory);
+        this.maxAgeMillis = maxAge.toMillis();
+        this.resident = resident;
+        if (maxSize > 0) {
+            prune(maxSize);
+        }
+    }
+
+    /**
+     * Deletes the least recently stored or revalidated entries, and any temporary files left behind by a process that
+     * died while writing one, until the store is no larger than the maximum size. Another process may be using an
+     * entry that is deleted; it is simply fetched again.
+     */
+    private void prune(long maxSize) throws IOException {
+        record Stored(Path file, long modified, long size) {
+        }
+        List<Stored> files = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        files.add(new Stored(file, attributes.lastModifiedTime().toMillis(), attributes.size()));
+                        total += attributes.size();
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted or moved into place by another process
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        files.sort(Comparator.comparingLong(Stored::modified));
+        int deleted = 0;
+        long freed = 0;
+        for (Stored stored : files) {
+            if (total - freed <= maxSize) {
+                break;
+            }
+            Files.deleteIfExists(stored.file());
+            deleted++;
+            freed += stored.size();
+        }
+        log.fine("Pruned " + deleted + " entries (" + freed / 1024 + " KB) from the metadata store at " + directory);
+    }
+
+    @Override
+    public GitHubConnectorResponse send(GitHubConnectorRequest request) throws IOException {
+        if (!"GET".equals(request.method()) || !METADATA_PATHS.matcher(request.url().getPath()).matches()) {
+            return delegate.send(request);
+        }
+
+        Path file = entryFile(request);
+        Entry entry = read(file);
+        if (entry != null && System.currentTimeMillis() - entry.storedAt() < maxAgeMillis) {
+            fresh.incrementAndGet();
+            log.finest("Serving " + request.url() + " from the metadata store");
+            return new StoredResponse(request, entry);
+        }
+
+        GitHubConnectorRequest sent = entry == null ? request : new ConditionalRequest(request, entry);
+        GitHubConnectorResponse response = delegate.send(sent);
+        if (entry != null && response.statusCode() == 304) {
+            response.close();
+            revalidated.incrementAndGet();
+            log.finest("Revalidated " + request.url() + " in the metadata store");
+            Entry refreshed = new Entry(entry.url(), System.currentTimeMillis(), entry.headers(), entry.body());
+            write(file, refreshed);
+            return new StoredResponse(request, refreshed);
+        }
+        if (response.statusCode() != 200 || (response.header("ETag") == null && response.header("Last-Modified") == null)) {
+            return response;
+        }
+
+        byte[] body;
+        try (response; InputStream in = response.bodyStream()) {
+            body = in == null ? new byte[0] : in.readAllBytes();
+        }
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : STORED_HEADERS) {
+            List<String> values = response.allHeaders().get(name);
+            if (values != null) {
+                headers.put(name, values);
+            }
+        }
+        Entry stored = new Entry(request.url().toString(), System.currentTimeMillis(), headers,
+                new String(body, StandardCharsets.UTF_8));
+        fetched.incrementAndGet();
+        write(file, stored);
+        return new StoredResponse(request, stored);
+    }
+
+    /**
+     * Entries are keyed by the URL, including the query string, and by the credentials used, so runs with different
+     * tokens never see each other's view of the organization
+     */
+    private Path entryFile(GitHubConnectorRequest request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(request.url().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            String authorization = request.header("Authorization");
+            if (authorization != null) {
+                digest.update(authorization.getBytes(StandardCharsets.UTF_8));
+            }
+            String key = HexFormat.of().formatHex(digest.digest());
+            return directory.resolve(key.substring(0, 2)).resolve(key + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Entry read(Path file) {
+        if (resident != null) {
+            Entry entry = resident.get(file);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        try {
+            Entry entry = MAPPER.readValue(file.toFile(), Entry.class);
+            if (resident != null) {
+                resident.put(file, entry);
+            }
+            return entry;
+        } catch (NoSuchFileException | FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            log.fine("Ignoring unreadable metadata store entry " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private void write(Path file, Entry entry) {
+        if (resident != null) {
+            resident.put(file, entry);
+        }
+        // Write to a temporary file and move it into place, so concurrent readers never see a partial entry
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                MAPPER.writeValue(tmp.toFile(), entry);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            log.fine("Failed to write metadata store entry " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Number of requests served from disk without contacting GitHub
+     */
+    public long servedFromDisk() {
+        return fresh.get();
+    }
+
+    /**
+     * Number of requests answered from the store after GitHub responded {@code 304 Not Modified}
+     */
+    public long revalidated() {
+        return revalidated.get();
+    }
+
+    /**
+     * Number of responses fetched from GitHub and added to the store
+     */
+    public long fetched() {
+        return fetched.get();
+    }
+
+    @Override
+    public String toString() {
+        return fresh.get() + " served from disk, " + revalidated.get() + " revalidated (304), "
+                + fetched.get() + " fetched";
+    }
+
+    /**
+     * A stored response
+     *
+     * @param url the request URL, for anyone inspecting the store
+     * @param storedAt when the response was fetched or last revalidated, in epoch milliseconds
+     */
+    record Entry(String url, long storedAt, Map<String, List<String>> headers, String body) {
+    }
+
+    /**
+     * The most recently used entries of the stores sharing it, kept in memory. An entry another process writes to
+     * disk isn't seen until this one is evicted, but as an entry is only served without revalidation while it is
+     * younger than the maximum age, that only delays picking up a change GitHub reports anyway.
+     */
+    public static final class Resident {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Path, Entry> entries;
+
+        /**
+         * @param maxEntries number of entries to keep; the least recently used are evicted beyond it
+         */
+        public Resident(int maxEntries) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        private Entry get(Path file) {
+            lock.lock();
+            try {
+                return entries.get(file);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void put(Path file, Entry entry) {
+            lock.lock();
+            try {
+                entries.put(file, entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Number of entries held in memory
+         */
+        public int size() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class StoredResponse extends GitHubConnectorResponse {
+        private final byte[] body;
+
+        private StoredResponse(GitHubConnectorRequest request, Entry entry) {
+            super(request, 200, entry.headers());
+            this.body = entry.body().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public InputStream bodyStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The original request, plus the headers that make it conditional on the stored entry having changed
+     */
+    private record ConditionalRequest(GitHubConnectorRequest request, Entry entry) implements GitHubConnectorRequest {
+
+        @Override
+        public String method() {
+            return request.method();
+        }
+
+        @Override
+        public Map<String, List<String>> allHeaders() {
+            Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.putAll(request.allHeaders());
+            List<String> etag = entry.headers().get("ETag");
+            List<String> lastModified = entry.headers().get("Last-Modified");
+            if (etag != null) {
+                headers.put("If-None-Match", etag);
+            } else if (lastModified != null) {
+                headers.put("If-Modified-Since", lastModified);
+            }
+            return headers;
+        }
+
+        @Override
+        public String header(String name) {
+            List<String> values = allHeaders().get(name);
+            return values == null ? null : String.join(",", values);
+        }
+
+        @Override
+        public String contentType() {
+            return request.contentType();
+        }
+
+        @Override
+        public InputStream body() {
+            return request.body();
+        }
+
+        @Override
+        public URL url() {
+            return request.url();
+        }
+
+        @Override
+        public boolean hasBody() {
+            return request.hasBody();
+        }
+    }
+}
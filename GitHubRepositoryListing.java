@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.kohsuke.github.GHRepository;
+
+/**
+ * Lists an organization's repositories with GraphQL, 100 per page, asking only for the fields the caller uses rather
+ * than the full REST representation of each repository with its owner, permissions and dozens of URLs. Filters that
+ * GitHub can apply to the listing are sent with the query; the rest are applied to each page as it arrives.
+ */
+public class GitHubRepositoryListing {
+
+    /** Largest page size GitHub allows for a connection */
+    private static final int PAGE_SIZE = 100;
+
+    /** Most topics GitHub allows a repository to have */
+    private static final int MAX_TOPICS = 20;
+
+    private final GitHubGraphQL graphQL;
+
+    public GitHubRepositoryListing(GitHubGraphQL graphQL) {
+        this.graphQL = graphQL;
+    }
+
+    /**
+     * Lists the organization's repositories that match the filter. The first page is fetched straight away; later
+     * pages are fetched as the result is iterated, so the caller can start on the first repositories while the rest
+     * are still being listed.
+     *
+     * @param fields the fields to fetch besides each repository's name and whether it is archived; any the filter
+     *               needs are added
+     * @return the matching repositories, or {@code null} if the organization doesn't exist. Iterating them throws
+     * {@link UncheckedIOException} if a later page can't be fetched.
+     */
+    public Iterable<Repository> list(String organization, Filter filter, Set<Field> fields) throws IOException {
+        JsonNode first = page(organization, filter, fields, null);
+        if (first == null) {
+            return null;
+        }
+        return () -> new Pages(organization, filter, fields, first);
+    }
+
+    /**
+     * @return the organization's {@code repositories} connection at the cursor, or {@code null} if the organization
+     * doesn't exist
+     */
+    private JsonNode page(String organization, Filter filter, Set<Field> fields, String cursor) throws IOException {
+        StringBuilder arguments = new StringBuilder("first: " + PAGE_SIZE);
+        if (cursor != null) {
+            arguments.append(", after: ").append(GitHubGraphQL.literal(cursor));
+        }
+        if (!filter.includeArchived()) {
+            arguments.append(", isArchived: false");
+        }
+        if (!filter.includeForks()) {
+            arguments.append(", isFork: false");
+        }
+        if (filter.visibility() != null) {
+            // GitHub's privacy filter counts internal repositories as private; they are told apart by their visibility
+            arguments.append(", privacy: ").append(filter.visibility() == Visibility.PUBLIC ? "PUBLIC" : "PRIVATE");
+        }
+        if (filter.pushedSince() != null) {
+            // Most recently pushed first, so the listing can stop at the first repository pushed before the cutoff
+            arguments.append(", orderBy: {field: PUSHED_AT, direction: DESC}");
+        }
+
+        StringBuilder selection = new StringBuilder("name isArchived");
+        if (fields.contains(Field.URL)) {
+            selection.append(" url");
+        }
+        if (fields.contains(Field.DEFAULT_BRANCH)) {
+            selection.append(" defaultBranchRef { name }");
+        }
+        if (filter.visibility() != null) {
+            selection.append(" visibility");
+        }
+        if (filter.pushedSince() != null) {
+            selection.append(" pushedAt");
+        }
+        if (filter.topic() != null) {
+            selection.append(" repositoryTopics(first: " + MAX_TOPICS + ") { nodes { topic { name } } }");
+        }
+
+        String query = "query { organization(login: " + GitHubGraphQL.literal(organization) + ") { " +
+                "repositories(" + arguments + ") { pageInfo { hasNextPage endCursor } nodes { " + selection + " } } } }";
+        JsonNode org = graphQL.query(query).path("organization");
+        return org.isMissingNode() || org.isNull() ? null : org.path("repositories");
+    }
+
+    private static Repository repository(JsonNode node) {
+        List<String> topics = new ArrayList<>();
+        for (JsonNode topic : node.path("repositoryTopics").path("nodes")) {
+            topics.add(topic.path("topic").path("name").asText());
+        }
+        JsonNode pushedAt = node.path("pushedAt");
+        JsonNode defaultBranch = node.path("defaultBranchRef");
+        return new Repository(node.path("name").asText(), node.path("url").asText(null),
+                node.path("isArchived").asBoolean(), false, node.path("visibility").asText(null),
+                pushedAt.isTextual() ? Instant.parse(pushedAt.asText()) : null,
+                defaultBranch.isObject() ? defaultBranch.path("name").asText() : null, topics);
+    }
+
+    /**
+     * Iterates over the matching repositories, fetching each page when the previous one has been used up
+     */
+    private class Pages implements Iterator<Repository> {
+        private final String organization;
+        private final Filter filter;
+        private final Set<Field> fields;
+        private JsonNode page;
+        private Iterator<JsonNode> nodes;
+        private Repository next;
+        private boolean done;
+
+        Pages(String organization, Filter filter, Set<Field> fields, JsonNode first) {
+            this.organization = organization;
+            this.filter = filter;
+            this.fields = fields;
+            this.page = first;
+            this.nodes = first.path("nodes").iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                if (nodes.hasNext()) {
+                    Repository repo = repository(nodes.next());
+                    if (filter.pushedSince() != null && repo.pushedAt() != null
+                            && repo.pushedAt().isBefore(filter.pushedSince())) {
+                        // Every later repository was pushed even earlier
+                        done = true;
+                    } else if (filter.matches(repo)) {
+                        next = repo;
+                    }
+                } else if (page.path("pageInfo").path("hasNextPage").asBoolean()) {
+                    try {
+                        page = page(organization, filter, fields, page.path("pageInfo").path("endCursor").asText());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (page == null) {
+                        throw new UncheckedIOException(new IOException("Organization " + organization + " disappeared while being listed"));
+                    }
+                    nodes = page.path("nodes").iterator();
+                } else {
+                    done = true;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Repository next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Repository result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    /**
+     * Fields that are only fetched when asked for
+     */
+    public enum Field {
+        URL,
+        DEFAULT_BRANCH
+    }
+
+    public enum Visibility {
+        PUBLIC,
+        PRIVATE,
+        INTERNAL
+    }
+
+    /**
+     * What is known about a listed repository. Fields that weren't fetched are {@code null}, or {@code false}.
+     *
+     * @param url the repository's web page
+     */
+    public record Repository(String name, String url, boolean archived, boolean fork, String visibility,
+                             Instant pushedAt, String defaultBranch, List<String> topics) {
+
+        /**
+         * Creates one from the REST representation of a repository
+         */
+        public static Repository fromRest(JsonNode repo) {
+            List<String> topics = new ArrayList<>();
+            repo.path("topics").forEach(topic -> topics.add(topic.asText()));
+            JsonNode pushedAt = repo.path("pushed_at");
+            return new Repository(repo.path("name").asText(), repo.path("html_url").asText(null),
+                    repo.path("archived").asBoolean(), repo.path("fork").asBoolean(),
+                    repo.path("visibility").asText(repo.path("private").asBoolean() ? "private" : "public"),
+                    pushedAt.isTextual() ? Instant.parse(pushedAt.asText()) : null,
+                    repo.path("default_branch").asText(null), topics);
+        }
+
+        /**
+         * Creates one from a repository listed by github-api
+         *
+         * @param topics whether to fetch the repository's topics, which github-api doesn't keep from the listing
+         */
+        public static Repository fromGitHub(GHRepository repo, boolean topics) throws IOException {
+            Date pushedAt = repo.getPushedAt();
+            return new Repository(repo.getName(), String.valueOf(repo.getHtmlUrl()), repo.isArchived(), repo.isFork(),
+                    String.valueOf(repo.getVisibility()).toLowerCase(), pushedAt == null ? null : pushedAt.toInstant(),
+                    repo.getDefaultBranch(), topics ? repo.listTopics() : List.of());
+        }
+    }
+
+    /**
+     * Which repositories to list
+     *
+     * @param visibility  the only visibility to list, or {@code null} for all
+     * @param pushedSince list only repositories pushed to at or after this time, or {@code null} for all
+     * @param topic       list only repositories with this topic, or {@code null} for all
+     */
+    public record Filter(boolean includeArchived, boolean includeForks, Visibility visibility, Instant pushedSince,
+                         String topic) {
+
+        /**
+         * Parses a {@code --pushed-since} value, either a date such as {@code 2024-01-31}, taken as the start of the
+         * day in UTC, or an instant such as {@code 2024-01-31T12:00:00Z}
+         *
+         * @throws IllegalArgumentException if it is neither
+         */
+        public static Instant parseTime(String value) {
+            try {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+            } catch (DateTimeParseException e) {
+                try {
+                    return Instant.parse(value);
+                } catch (DateTimeParseException e2) {
+                    throw new IllegalArgumentException("Not a date or time: " + value);
+                }
+            }
+        }
+
+        /**
+         * Applies the filter to a repository, for listings that GitHub couldn't filter; only the fields the filter
+         * needs have to be known
+         */
+        public boolean matches(Repository repo) {
+            return (includeArchived || !repo.archived())
+                    && (includeForks || !repo.fork())
+                    && (visibility == null || visibility.name().equalsIgnoreCase(repo.visibility()))
+                    && (pushedSince == null || (repo.pushedAt() != null && !repo.pushedAt().isBefore(pushedSince)))
+                    && (topic == null || repo.topics().contains(topic.toLowerCase()));
+        }
+    }
+}
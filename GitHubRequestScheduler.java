@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+/**
+ * A {@link GitHubConnector} that paces the requests sent through a delegate connector, so that large runs
+ * stay within GitHub's primary and secondary rate limits instead of failing part way through.
+ * <p>
+ * Pacing uses token buckets:
+ * <ul>
+ *     <li>Reads (and GraphQL queries) share a bucket per rate limit resource ({@code core}, {@code graphql},
+ *     {@code search}). Requests run at full speed while more than half of a resource's budget remains; after that
+ *     the bucket's rate is lowered so the remaining budget is spread over the time left until the budget resets.</li>
+ *     <li>Content-creating requests ({@code POST}, {@code PUT}, {@code PATCH}, {@code DELETE} -- e.g. Contents,
+ *     pull requests and refs) additionally go through a stricter bucket allowing one request per second, per
+ *     GitHub's guidance for avoiding secondary rate limits.</li>
+ * </ul>
+ * The {@code X-RateLimit-Remaining}, {@code X-RateLimit-Limit} and {@code X-RateLimit-Reset} headers of each response
+ * update the budget for its resource. A {@code Retry-After} header on a 403 or 429 response, or an exhausted budget,
+ * pauses all requests until GitHub says it is safe to continue.
+ * <p>
+ * The budgets, buckets and pauses are kept in a {@link Pacing}, which schedulers for clients using the same
+ * credentials can share, since GitHub's limits apply to the credentials rather than to each client. A scheduler's own
+ * limits can then only lower the rate its requests are sent at.
+ */
+public class GitHubRequestScheduler implements GitHubConnector {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitHubRequestScheduler.class.getPackageName());
+
+    /** GitHub allows up to 100 concurrent requests; stay well below that */
+    static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 50;
+    /** Rate used while a resource's budget is healthy */
+    static final double DEFAULT_MAX_READS_PER_SECOND = 50;
+    /** GitHub recommends at least a second between content-creating requests */
+    static final double DEFAULT_WRITES_PER_SECOND = 1;
+
+    private static final int LOG_INTERVAL = 500;
+
+    private final GitHubConnector delegate;
+    private final Pacing pacing;
+    // This scheduler's own limits, where they are lower than the pacing's; otherwise null
+    private final Semaphore ownInFlight;
+    private final TokenBucket ownRate;
+    private final TokenBucket ownWrites;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong writeRequests = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public GitHubRequestScheduler(GitHubConnector delegate) {
+        this(delegate, DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_READS_PER_SECOND, DEFAULT_WRITES_PER_SECOND);
+    }
+
+    public GitHubRequestScheduler(GitHubConnector delegate, int maxConcurrentRequests,
+                                  double maxReadsPerSecond, double writesPerSecond) {
+        this(delegate, new Pacing(maxConcurrentRequests, maxReadsPerSecond, writesPerSecond),
+                maxConcurrentRequests, maxReadsPerSecond, writesPerSecond);
+    }
+
+    /**
+     * Paces requests with a pacing that may be shared with other schedulers. Limits higher than the pacing's have no
+     * effect, so schedulers sharing it never send more than its limits allow between them.
+     */
+    public GitHubRequestScheduler(GitHubConnector delegate, Pacing pacing, int maxConcurrentRequests,
+                                  double maxReadsPerSecond, double writesPerSecond) {
+        this.delegate = delegate;
+        this.pacing = pacing;
+        this.ownInFlight = maxConcurrentRequests < pacing.maxConcurrentRequests
+                ? new Semaphore(maxConcurrentRequests, true) : null;
+        this.ownRate = maxReadsPerSecond < pacing.maxReadsPerSecond
+                ? new TokenBucket(Math.max(1, maxReadsPerSecond), maxReadsPerSecond) : null;
+        this.ownWrites = writesPerSecond < pacing.writesPerSecond ? new TokenBucket(1, writesPerSecond) : null;
+    }
+
+    @Override
+    public GitHubConnectorResponse send(GitHubConnectorRequest request) throws IOException {
+        boolean write = isContentCreating(request);
+        Budget budget = pacing.budget(resourceFor(request));
+        long start = System.nanoTime();
+        try {
+            pacing.awaitPause();
+            // Wait for this scheduler's own limits first, so waiting for them doesn't hold up the shared ones
+            if (ownRate != null) {
+                ownRate.acquire();
+            }
+            budget.bucket.acquire();
+            if (write) {
+                if (ownWrites != null) {
+                    ownWrites.acquire();
+                }
+                pacing.writes.acquire();
+                writeRequests.incrementAndGet();
+            }
+            acquireInFlight();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to send " + request.method() + " " + request.url(), e);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        try {
+            GitHubConnectorResponse response = delegate.send(request);
+            observe(response);
+            if (requests.incrementAndGet() % LOG_INTERVAL == 0) {
+                log.info("GitHub API scheduler: " + this);
+            }
+            return response;
+        } finally {
+            pacing.inFlight.release();
+            if (ownInFlight != null) {
+                ownInFlight.release();
+            }
+        }
+    }
+
+    private void acquireInFlight() throws InterruptedException {
+        if (ownInFlight != null) {
+            ownInFlight.acquire();
+        }
+        try {
+            pacing.inFlight.acquire();
+        } catch (InterruptedException e) {
+            if (ownInFlight != null) {
+                ownInFlight.release();
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isContentCreating(GitHubConnectorRequest request) {
+        return switch (request.method()) {
+            // GraphQL queries are POSTs but don't create content
+            case "POST" -> !request.url().getPath().endsWith("/graphql");
+            case "PUT", "PATCH", "DELETE" -> true;
+            default -> false;
+        };
+    }
+
+    private static String resourceFor(GitHubConnectorRequest request) {
+        String path = request.url().getPath();
+        if (path.endsWith("/graphql")) {
+            return "graphql";
+        } else if (path.startsWith("/search/") || path.contains("/api/v3/search/")) {
+            return "search";
+        }
+        return "core";
+    }
+
+    private void pauseUntil(long epochMillis, String reason) {
+        if (pacing.pauseUntil(epochMillis)) {
+            pauses.incrementAndGet();
+            log.warning("⏸️ Pausing GitHub API requests for "
+                    + Duration.ofMillis(Math.max(0, epochMillis - System.currentTimeMillis())).toSeconds()
+                    + "s: " + reason);
+        }
+    }
+
+    private void observe(GitHubConnectorResponse response) {
+        int status = response.statusCode();
+        String retryAfter = response.header("Retry-After");
+        if ((status == 403 || status == 429) && retryAfter != null) {
+            try {
+                pauseUntil(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())),
+                        "secondary rate limit (Retry-After: " + retryAfter + ")");
+            } catch (NumberFormatException e) {
+                log.fine("Ignoring unparseable Retry-After header " + retryAfter);
+            }
+        }
+
+        String remaining = response.header("X-RateLimit-Remaining");
+        String reset = response.header("X-RateLimit-Reset");
+        if (remaining == null || reset == null) {
+            return;
+        }
+        String resource = response.header("X-RateLimit-Resource");
+        Budget budget = pacing.budget(resource != null ? resource : resourceFor(response.request()));
+        try {
+            String limit = response.header("X-RateLimit-Limit");
+            budget.update(Long.parseLong(remaining.trim()),
+                    limit == null ? -1 : Long.parseLong(limit.trim()),
+                    Long.parseLong(reset.trim()));
+        } catch (NumberFormatException e) {
+            log.fine("Ignoring unparseable rate limit headers remaining=" + remaining + " reset=" + reset);
+            return;
+        }
+        if (budget.isExhausted()) {
+            // Add a second of slack as the reset time is only accurate to the second
+            pauseUntil(TimeUnit.SECONDS.toMillis(budget.resetEpochSeconds + 1),
+                    "the " + budget.resource + " rate limit budget is exhausted");
+        }
+    }
+
+    /**
+     * Total time requests have spent waiting to be sent, summed over all requests
+     */
+    public Duration waitTime() {
+        return Duration.ofNanos(waitNanos.get());
+    }
+
+    /**
+     * Number of times this scheduler's responses paused all requests
+     */
+    public long pauses() {
+        return pauses.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(requests.get()).append(" requests (").append(writeRequests.get()).append(" content-creating)");
+        for (Budget budget : pacing.budgets.values()) {
+            sb.append("; ").append(budget);
+        }
+        if (pauses.get() > 0) {
+            sb.append("; paused ").append(pauses.get()).append(" times");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The rate limit budgets, the buckets that pace requests against them and any pause of all requests, for one set
+     * of credentials
+     */
+    public static final class Pacing {
+        private final int maxConcurrentRequests;
+        private final double maxReadsPerSecond;
+        private final double writesPerSecond;
+        private final Semaphore inFlight;
+        private final TokenBucket writes;
+        private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+        private final AtomicLong pausedUntil = new AtomicLong();
+
+        public Pacing(int maxConcurrentRequests, double maxReadsPerSecond, double writesPerSecond) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            this.maxReadsPerSecond = maxReadsPerSecond;
+            this.writesPerSecond = writesPerSecond;
+            this.inFlight = new Semaphore(maxConcurrentRequests, true);
+            this.writes = new TokenBucket(1, writesPerSecond);
+        }
+
+        private Budget budget(String resource) {
+            return budgets.computeIfAbsent(resource, r -> new Budget(r, maxReadsPerSecond));
+        }
+
+        private void awaitPause() throws InterruptedException {
+            long wait;
+            while ((wait = pausedUntil.get() - System.currentTimeMillis()) > 0) {
+                Thread.sleep(wait);
+            }
+        }
+
+        /**
+         * @return whether this lengthened the pause
+         */
+        private boolean pauseUntil(long epochMillis) {
+            return pausedUntil.getAndAccumulate(epochMillis, Math::max) < epochMillis;
+        }
+    }
+
+    /**
+     * Rate limit budget for a single GitHub rate limit resource, and the bucket that paces requests against it. Every
+     * response updates it, from whichever virtual thread received it, so its fields are guarded by a lock.
+     */
+    private static final class Budget {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final String resource;
+        private final double maxReadsPerSecond;
+        private final TokenBucket bucket;
+        private long remaining = -1;
+        private long limit = -1;
+        private long resetEpochSeconds;
+
+        private Budget(String resource, double maxReadsPerSecond) {
+            this.resource = resource;
+            this.maxReadsPerSecond = maxReadsPerSecond;
+            this.bucket = new TokenBucket(Math.max(1, maxReadsPerSecond), maxReadsPerSecond);
+        }
+
+        private void update(long remaining, long limit, long resetEpochSeconds) {
+            lock.lock();
+            try {
+                // Responses can arrive out of order, or come from the HTTP cache with stale headers.
+                // Within a reset window the remaining budget only goes down, so ignore anything older or higher.
+                if (resetEpochSeconds < this.resetEpochSeconds
+                        || (resetEpochSeconds == this.resetEpochSeconds && remaining >= this.remaining && this.remaining >= 0)) {
+                    return;
+                }
+                boolean wasLow = isLow();
+                this.remaining = remaining;
+                this.limit = limit;
+                this.resetEpochSeconds = resetEpochSeconds;
+
+                double rate = maxReadsPerSecond;
+                if (isLow()) {
+                    long secondsToReset = Math.max(1, resetEpochSeconds - Instant.now().getEpochSecond());
+                    rate = Math.min(maxReadsPerSecond, Math.max((double) remaining / secondsToReset, 1.0 / secondsToReset));
+                }
+                bucket.setRate(rate);
+                if (isLow() && !wasLow) {
+                    log.info("⚠️ GitHub " + resource + " rate limit budget is below half; pacing requests. " + this);
+                } else {
+                    log.finest("GitHub API scheduler: " + this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isLow() {
+            return remaining >= 0 && limit > 0 && remaining * 2 < limit;
+        }
+
+        private boolean isExhausted() {
+            lock.lock();
+            try {
+                return remaining == 0 && resetEpochSeconds > Instant.now().getEpochSecond();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            lock.lock();
+            try {
+                if (remaining < 0) {
+                    return resource + " budget unknown";
+                }
+                return String.format("%s %d/%d remaining, resets in %ds, pacing at %.2f req/s", resource, remaining,
+                        limit, Math.max(0, resetEpochSeconds - Instant.now().getEpochSecond()), bucket.getRate());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A token bucket where callers reserve a token and then sleep until it becomes available, so waiting callers are
+     * released in order at the bucket's rate. The lock is only held to reserve the token; callers sleep after
+     * releasing it.
+     */
+    private static final class TokenBucket {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final double capacity;
+        private double ratePerSecond;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(double capacity, double ratePerSecond) {
+            this.capacity = capacity;
+            this.ratePerSecond = ratePerSecond;
+            this.tokens = capacity;
+        }
+
+        private void acquire() throws InterruptedException {
+            long waitNanos;
+            lock.lock();
+            try {
+                refill();
+                tokens -= 1;
+                waitNanos = tokens >= 0 ? 0 : (long) (-tokens / ratePerSecond * TimeUnit.SECONDS.toNanos(1));
+            } finally {
+                lock.unlock();
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+
+        private void setRate(double ratePerSecond) {
+            lock.lock();
+            try {
+                refill();
+                this.ratePerSecond = ratePerSecond;
+                // Limit any burst to roughly a second's worth of requests at the new rate
+                tokens = Math.min(tokens, Math.max(1, ratePerSecond));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private double getRate() {
+            lock.lock();
+            try {
+                return ratePerSecond;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+        }
+    }
+}
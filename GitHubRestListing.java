@@ -0,0 +1,223 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.kohsuke.github.HttpException;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+/**
+ * Fetches REST API listings directly through a {@link GitHubConnector} rather than via github-api. A listing can be
+ * requested conditionally on the {@code ETag} it had when it was last seen, so the caller can tell from a
+ * {@code 304 Not Modified} response that it hasn't changed; that needs a connector other than the
+ * {@link GitHubMetadataStore}, which answers a {@code 304} with the stored listing. A listing can also have its pages
+ * fetched concurrently, which github-api's iterators can't do.
+ */
+public class GitHubRestListing {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final Pattern NEXT_LINK = Pattern.compile("<([^>]+)>;\\s*rel=\"next\"");
+
+    private static final Pattern LAST_LINK = Pattern.compile("<([^>]+)>;\\s*rel=\"last\"");
+
+    private static final Pattern PAGE_PARAMETER = Pattern.compile("([?&]page=)(\\d+)");
+
+    /** Largest page size GitHub allows for a listing */
+    private static final int MAX_PAGE_SIZE = 100;
+
+    private final GitHubConnector connector;
+    private final String endpoint;
+    private final String authorization;
+
+    public GitHubRestListing(GitHubConnector connector, String endpoint, String authorization) {
+        this.connector = connector;
+        this.endpoint = endpoint;
+        this.authorization = authorization;
+    }
+
+    /**
+     * Creates a client using the given credentials
+     */
+    public static GitHubRestListing create(GitHubConnector connector, GitHubCredentials credentials) {
+        return new GitHubRestListing(connector, credentials.endpoint(), credentials.authorization());
+    }
+
+    /**
+     * Fetches all the pages of a listing.
+     *
+     * @param path path of the listing, e.g. {@code /repos/OWNER/REPO/teams}
+     * @param etag the {@link Listing#etag()} of the listing when it was last fetched, or {@code null}
+     * @return the listing, or {@code null} if it hasn't changed since it had the given {@code ETag}
+     * @throws HttpException if GitHub responds with an error
+     */
+    public Listing fetch(String path, String etag) throws IOException {
+        Page page = page(firstPage(path), etag);
+        if (page == null) {
+            return null;
+        }
+        // Only a single page listing can be validated by its ETag; later pages have their own
+        String listingEtag = link(NEXT_LINK, page.link()) == null ? page.etag() : null;
+        List<JsonNode> items = new ArrayList<>(page.items());
+        for (String next = link(NEXT_LINK, page.link()); next != null; next = link(NEXT_LINK, page.link())) {
+            page = page(URI.create(next).toURL(), null);
+            items.addAll(page.items());
+        }
+        return new Listing(listingEtag, items);
+    }
+
+    /**
+     * Fetches all the pages of a listing. Once the first page's {@code Link} header gives the number of pages, the
+     * rest are fetched concurrently on virtual threads; the connector still limits how many requests are in flight.
+     * Each page is handed over as soon as it and the pages before it have arrived, so the caller can start on the
+     * first items while the rest are still being fetched.
+     *
+     * @param path    path of the listing, e.g. {@code /orgs/ORGANIZATION/repos}
+     * @param handler receives each page's items, in the order GitHub lists them
+     * @throws HttpException if GitHub responds with an error
+     */
+    public void fetchConcurrently(String path, PageHandler handler) throws IOException, InterruptedException {
+        Page first = page(firstPage(path), null);
+        handler.accept(first.items());
+        String last = link(LAST_LINK, first.link());
+        Matcher lastPage = last == null ? null : PAGE_PARAMETER.matcher(last);
+        if (lastPage == null || !lastPage.find()) {
+            // A single page, or GitHub didn't say how many there are, so follow the next links instead
+            Page page = first;
+            for (String next = link(NEXT_LINK, page.link()); next != null; next = link(NEXT_LINK, page.link())) {
+                page = page(URI.create(next).toURL(), null);
+                handler.accept(page.items());
+            }
+            return;
+        }
+        int pages = Integer.parseInt(lastPage.group(2));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Page>> fetches = new ArrayList<>();
+            for (int i = 2; i <= pages; i++) {
+                URL url = URI.create(lastPage.replaceFirst("$1" + i)).toURL();
+                fetches.add(executor.submit(() -> page(url, null)));
+            }
+            for (Future<Page> fetch : fetches) {
+                try {
+                    handler.accept(fetch.get().items());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException ioe) {
+                        throw ioe;
+                    } else if (e.getCause() instanceof RuntimeException re) {
+                        throw re;
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+    }
+
+    private URL firstPage(String path) throws IOException {
+        return URI.create(endpoint + path + (path.contains("?") ? "&" : "?") + "per_page=" + MAX_PAGE_SIZE).toURL();
+    }
+
+    /**
+     * @return the page, or {@code null} if it hasn't changed since it had the given {@code ETag}
+     */
+    private Page page(URL url, String etag) throws IOException {
+        try (GitHubConnectorResponse response = connector.send(new Request(url, authorization, etag))) {
+            if (etag != null && (response.statusCode() == 304 || etag.equals(response.header("ETag")))) {
+                return null;
+            }
+            if (response.statusCode() != 200) {
+                throw new HttpException("Listing " + url.getPath() + " failed with status " + response.statusCode(),
+                        response.statusCode(), null, url.toString());
+            }
+            List<JsonNode> items = new ArrayList<>();
+            try (InputStream in = response.bodyStream()) {
+                JsonNode page = in == null ? null : MAPPER.readTree(in);
+                if (page != null) {
+                    page.forEach(items::add);
+                }
+            }
+            return new Page(items, response.header("ETag"), response.header("Link"));
+        }
+    }
+
+    private static String link(Pattern rel, String link) {
+        if (link == null) {
+            return null;
+        }
+        Matcher m = rel.matcher(link);
+        return m.find() ? m.group(1) : null;
+    }
+
+    private record Page(List<JsonNode> items, String etag, String link) {
+    }
+
+    /**
+     * Receives the pages of a listing fetched by {@link #fetchConcurrently}
+     */
+    @FunctionalInterface
+    public interface PageHandler {
+        void accept(List<JsonNode> items) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A listing's items
+     *
+     * @param etag the listing's {@code ETag}, or {@code null} if it has none or has more than one page
+     */
+    public record Listing(String etag, List<JsonNode> items) {
+    }
+
+    private record Request(URL url, String authorization, String etag) implements GitHubConnectorRequest {
+
+        @Override
+        public String method() {
+            return "GET";
+        }
+
+        @Override
+        public Map<String, List<String>> allHeaders() {
+            Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.put("Authorization", List.of(authorization));
+            headers.put("Accept", List.of("application/vnd.github+json"));
+            if (etag != null) {
+                headers.put("If-None-Match", List.of(etag));
+            }
+            return headers;
+        }
+
+        @Override
+        public String header(String name) {
+            List<String> values = allHeaders().get(name);
+            return values == null ? null : String.join(",", values);
+        }
+
+        @Override
+        public String contentType() {
+            return null;
+        }
+
+        @Override
+        public InputStream body() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public boolean hasBody() {
+            return false;
+        }
+    }
+}
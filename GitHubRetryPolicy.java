@@ -0,0 +1,437 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import org.kohsuke.github.HttpException;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+/**
+ * A {@link GitHubConnector} that retries requests that fail for transient reasons, so a 502 or a secondary rate
+ * limit doesn't cost a run a repository.
+ * <p>
+ * Each response or failure is classified:
+ * <ul>
+ *     <li>Rate limit responses (429, and 403 with {@code Retry-After}, an exhausted {@code X-RateLimit-Remaining} or
+ *     a "secondary rate limit" message) mean GitHub rejected the request without processing it, so it is always
+ *     retried.</li>
+ *     <li>Server errors (500, 502, 503, 504), request timeouts (408) and I/O errors may mean the request was processed
+ *     but the response was lost, so they are only retried for requests that are safe to replay: reads, {@code PUT},
+ *     {@code PATCH} and {@code DELETE}, GraphQL queries, and the Git Data API and pull request {@code POST}s, whose
+ *     replays either create identical objects or are rejected as duplicates. Errors connecting to GitHub are always
+ *     retried, as the request was never sent.</li>
+ *     <li>Anything else, e.g. 401, 404 or 422, is returned to the caller straight away.</li>
+ * </ul>
+ * Retries back off exponentially from a second up to a minute, with jitter so concurrent workers don't retry in step.
+ * A {@code Retry-After} header, or the reset time of an exhausted rate limit budget, is waited out in full.
+ * <p>
+ * A circuit breaker shared by all requests opens when at least {@code breakerThreshold} of the last
+ * {@value #BREAKER_WINDOW} attempts failed transiently. While it is open every request waits; after the pause one
+ * request probes GitHub, closing the breaker if it succeeds and reopening it for twice as long if it doesn't.
+ */
+public class GitHubRetryPolicy implements GitHubConnector {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitHubRetryPolicy.class.getPackageName());
+
+    static final int DEFAULT_MAX_RETRIES = 5;
+    static final int DEFAULT_BREAKER_THRESHOLD = 10;
+    static final Duration DEFAULT_BREAKER_PAUSE = Duration.ofSeconds(30);
+
+    private static final Duration BASE_DELAY = Duration.ofSeconds(1);
+    private static final Duration MAX_DELAY = Duration.ofMinutes(1);
+    private static final Duration MAX_BREAKER_PAUSE = Duration.ofMinutes(5);
+    /** Number of recent attempts the circuit breaker considers */
+    private static final int BREAKER_WINDOW = 20;
+    /** 403 and 429 bodies are small; anything bigger isn't a rate limit message */
+    private static final int MAX_INSPECTED_BODY = 64 * 1024;
+    private static final Pattern RATE_LIMIT_MESSAGE = Pattern.compile("secondary rate limit|rate limit exceeded|abuse detection",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern REPLAYABLE_POST = Pattern.compile(".*/(graphql|git/(blobs|trees|commits|refs)|pulls)");
+
+    private final GitHubConnector delegate;
+    private final int maxRetries;
+    private final CircuitBreaker breaker;
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    public GitHubRetryPolicy(GitHubConnector delegate) {
+        this(delegate, DEFAULT_MAX_RETRIES, DEFAULT_BREAKER_THRESHOLD, DEFAULT_BREAKER_PAUSE);
+    }
+
+    /**
+     * @param breakerThreshold number of transient failures among the last {@value #BREAKER_WINDOW} attempts that
+     *                         opens the circuit breaker; 0 disables it
+     */
+    public GitHubRetryPolicy(GitHubConnector delegate, int maxRetries, int breakerThreshold, Duration breakerPause) {
+        this.delegate = delegate;
+        this.maxRetries = maxRetries;
+        this.breaker = new CircuitBreaker(breakerThreshold, breakerPause);
+    }
+
+    @Override
+    public GitHubConnectorResponse send(GitHubConnectorRequest request) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            boolean probe = breaker.acquire(request);
+            GitHubConnectorResponse response = null;
+            IOException failure = null;
+            Disposition disposition = Disposition.FATAL;
+            try {
+                response = delegate.send(request);
+                if (response.statusCode() == 403) {
+                    response = buffered(response);
+                }
+                disposition = classify(request, response);
+            } catch (IOException e) {
+                failure = e;
+                disposition = classify(request, e);
+            } finally {
+                breaker.record(probe, disposition == Disposition.RETRY || disposition == Disposition.TRANSIENT);
+            }
+
+            if (disposition != Disposition.RETRY) {
+                return returnOrThrow(response, failure);
+            } else if (attempt >= maxRetries) {
+                exhausted.incrementAndGet();
+                log.warning("⚠️ Giving up on " + request.method() + " " + request.url() + " after " + (attempt + 1)
+                        + " attempts: " + describe(response, failure));
+                return returnOrThrow(response, failure);
+            }
+
+            Duration delay = delay(attempt, response);
+            if (response != null) {
+                response.close();
+            }
+            retries.incrementAndGet();
+            log.info("🔁 Retrying " + request.method() + " " + request.url() + " in " + delay.toMillis() + "ms ("
+                    + (attempt + 1) + "/" + maxRetries + "): " + describe(response, failure));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to retry " + request.method() + " " + request.url(), e);
+            }
+        }
+    }
+
+    private static GitHubConnectorResponse returnOrThrow(GitHubConnectorResponse response, IOException failure) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        return response;
+    }
+
+    private static String describe(GitHubConnectorResponse response, IOException failure) {
+        return failure != null ? failure.toString() : "HTTP " + response.statusCode();
+    }
+
+    private enum Disposition {
+        SUCCESS,
+        /** Failed transiently and is safe to send again */
+        RETRY,
+        /** Failed transiently but may have been processed, so is not sent again */
+        TRANSIENT,
+        FATAL
+    }
+
+    private static Disposition classify(GitHubConnectorRequest request, GitHubConnectorResponse response) {
+        int status = response.statusCode();
+        if (status < 400) {
+            return Disposition.SUCCESS;
+        } else if (status == 429 || (status == 403 && isRateLimited(response))) {
+            return Disposition.RETRY;
+        } else if (isTransientStatus(status)) {
+            return isReplayable(request) ? Disposition.RETRY : Disposition.TRANSIENT;
+        }
+        return Disposition.FATAL;
+    }
+
+    private static Disposition classify(GitHubConnectorRequest request, IOException failure) {
+        if (Thread.currentThread().isInterrupted() || failure.getCause() instanceof InterruptedException) {
+            return Disposition.FATAL;
+        } else if (failure instanceof ConnectException || failure instanceof UnknownHostException
+                || failure instanceof NoRouteToHostException) {
+            return Disposition.RETRY;
+        } else if (isTransientFailure(failure)) {
+            return isReplayable(request) ? Disposition.RETRY : Disposition.TRANSIENT;
+        }
+        return Disposition.FATAL;
+    }
+
+    private static boolean isTransientStatus(int status) {
+        return switch (status) {
+            case 408, 429, 500, 502, 503, 504 -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isTransientFailure(IOException failure) {
+        return failure instanceof SocketException || failure instanceof SocketTimeoutException
+                || failure instanceof UnknownHostException
+                // OkHttp reports HTTP/2 stream resets and truncated responses as plain IOExceptions
+                || failure.getClass() == IOException.class
+                || failure.getClass().getName().startsWith("okhttp3.internal.http2.");
+    }
+
+    private static boolean isRateLimited(GitHubConnectorResponse response) {
+        if (response.header("Retry-After") != null || "0".equals(response.header("X-RateLimit-Remaining"))) {
+            return true;
+        }
+        try (InputStream in = response.bodyStream()) {
+            return in != null && RATE_LIMIT_MESSAGE.matcher(new String(in.readNBytes(MAX_INSPECTED_BODY), StandardCharsets.UTF_8)).find();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isReplayable(GitHubConnectorRequest request) {
+        return switch (request.method()) {
+            case "GET", "HEAD", "PUT", "PATCH", "DELETE" -> true;
+            case "POST" -> REPLAYABLE_POST.matcher(request.url().getPath()).matches();
+            default -> false;
+        };
+    }
+
+    /**
+     * Whether a failure reported by github-api or the scripts, after any retries, was caused by a transient problem
+     * rather than by the request itself, so trying again later would be expected to succeed
+     */
+    public static boolean isTransient(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof HttpException http && http.getResponseCode() > 0) {
+                return isTransientStatus(http.getResponseCode())
+                        || (http.getResponseCode() == 403 && RATE_LIMIT_MESSAGE.matcher(String.valueOf(http.getMessage())).find());
+            } else if (t instanceof ConnectException || t instanceof UnknownHostException
+                    || t instanceof SocketException || t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exponential backoff with jitter: half of each delay is fixed and half is random. A {@code Retry-After} header
+     * or an exhausted rate limit budget's reset time takes precedence, with up to a second of jitter added.
+     */
+    private static Duration delay(int attempt, GitHubConnectorResponse response) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Duration requested = response == null ? null : requestedDelay(response);
+        if (requested != null) {
+            return requested.plusMillis(random.nextLong(BASE_DELAY.toMillis() + 1));
+        }
+        long backoff = Math.min(MAX_DELAY.toMillis(), BASE_DELAY.toMillis() << Math.min(attempt, 20));
+        return Duration.ofMillis(backoff / 2 + random.nextLong(backoff / 2 + 1));
+    }
+
+    private static Duration requestedDelay(GitHubConnectorResponse response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Duration.ofSeconds(Math.max(0, Long.parseLong(retryAfter.trim())));
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Duration.ofMillis(Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis()));
+                } catch (DateTimeParseException e2) {
+                    log.fine("Ignoring unparseable Retry-After header " + retryAfter);
+                }
+            }
+        }
+        String reset = response.header("X-RateLimit-Reset");
+        if ("0".equals(response.header("X-RateLimit-Remaining")) && reset != null) {
+            try {
+                // Add a second of slack as the reset time is only accurate to the second
+                return Duration.ofMillis(Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(reset.trim()) + 1)
+                        - System.currentTimeMillis()));
+            } catch (NumberFormatException e) {
+                log.fine("Ignoring unparseable X-RateLimit-Reset header " + reset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a response's body into memory, so it can be inspected and still be read by the caller
+     */
+    private static GitHubConnectorResponse buffered(GitHubConnectorResponse response) throws IOException {
+        byte[] body;
+        try (response; InputStream in = response.bodyStream()) {
+            body = in == null ? new byte[0] : in.readAllBytes();
+        }
+        return new GitHubConnectorResponse(response.request(), response.statusCode(), response.allHeaders()) {
+            @Override
+            public InputStream bodyStream() {
+                return new ByteArrayInputStream(body);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Number of retries made
+     */
+    public long retries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of requests that still failed transiently after all their retries
+     */
+    public long exhausted() {
+        return exhausted.get();
+    }
+
+    @Override
+    public String toString() {
+        return retries.get() + " retries, " + exhausted.get() + " requests gave up, " + breaker;
+    }
+
+    /**
+     * Pauses all requests while too many recent attempts have failed transiently. Paused requests wait on a
+     * {@link Condition} of the lock, which is signalled whenever the breaker changes state.
+     */
+    private static final class CircuitBreaker {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final int threshold;
+        private final Duration pause;
+        private final boolean[] window = new boolean[BREAKER_WINDOW];
+        private int next;
+        private int failures;
+        private State state = State.CLOSED;
+        private long openUntil;
+        private Duration currentPause;
+        private long opened;
+
+        private enum State {
+            CLOSED,
+            OPEN,
+            /** A single request is probing whether GitHub has recovered */
+            PROBING
+        }
+
+        private CircuitBreaker(int threshold, Duration pause) {
+            this.threshold = threshold;
+            this.pause = pause;
+            this.currentPause = pause;
+        }
+
+        /**
+         * Waits until the breaker lets a request through
+         *
+         * @return whether the request is the probe that decides whether the breaker closes
+         */
+        private boolean acquire(GitHubConnectorRequest request) throws IOException {
+            if (threshold <= 0) {
+                return false;
+            }
+            lock.lock();
+            try {
+                while (true) {
+                    switch (state) {
+                        case CLOSED:
+                            return false;
+                        case OPEN:
+                            long wait = openUntil - System.currentTimeMillis();
+                            if (wait <= 0) {
+                                state = State.PROBING;
+                                return true;
+                            }
+                            changed.await(wait, TimeUnit.MILLISECONDS);
+                            break;
+                        case PROBING:
+                            changed.await();
+                            break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to send " + request.method() + " " + request.url(), e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Records the outcome of an attempt
+         *
+         * @param failed whether the attempt failed transiently
+         */
+        private void record(boolean probe, boolean failed) {
+            if (threshold <= 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (probe) {
+                    if (state != State.PROBING) {
+                        return;
+                    }
+                    if (failed) {
+                        currentPause = currentPause.multipliedBy(2).compareTo(MAX_BREAKER_PAUSE) > 0
+                                ? MAX_BREAKER_PAUSE : currentPause.multipliedBy(2);
+                        open("GitHub is still failing");
+                    } else {
+                        log.info("▶️ GitHub is responding again; resuming requests");
+                        state = State.CLOSED;
+                        currentPause = pause;
+                        Arrays.fill(window, false);
+                        failures = 0;
+                        changed.signalAll();
+                    }
+                } else if (state == State.CLOSED) {
+                    if (window[next]) {
+                        failures--;
+                    }
+                    window[next] = failed;
+                    if (failed) {
+                        failures++;
+                    }
+                    next = (next + 1) % window.length;
+                    if (failures >= threshold) {
+                        open(failures + " of the last " + window.length + " attempts failed");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void open(String reason) {
+            state = State.OPEN;
+            opened++;
+            openUntil = System.currentTimeMillis() + currentPause.toMillis();
+            log.warning("🛑 Pausing all GitHub API requests for " + currentPause.toSeconds() + "s: " + reason);
+            changed.signalAll();
+        }
+
+        @Override
+        public String toString() {
+            lock.lock();
+            try {
+                return threshold <= 0 ? "circuit breaker disabled" : "circuit breaker opened " + opened + " times";
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
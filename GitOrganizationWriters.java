@@ -5,22 +5,53 @@
 //DEPS com.squareup.okhttp3:okhttp:4.12.0
 //DEPS info.picocli:picocli:4.7.6
 //DEPS org.kohsuke:github-api:1.327
+//SOURCES GitHubRequestScheduler.java
+//SOURCES GitHubRetryPolicy.java
+//SOURCES GitHubClientOptions.java
+//SOURCES GitHubMetadataStore.java
+//SOURCES GitHubApiMetrics.java
+//SOURCES GitHubGraphQL.java
+//SOURCES GitHubCredentials.java
+//SOURCES GitHubRestListing.java
+//SOURCES WriterAccessIndex.java
+//SOURCES RecordWriter.java
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import okhttp3.Cache;
-import okhttp3.OkHttpClient;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.jetbrains.annotations.NotNull;
 import org.kohsuke.github.GHOrganization;
 import org.kohsuke.github.GHPermissionType;
@@ -28,8 +59,6 @@ import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GHTeam;
 import org.kohsuke.github.GHUser;
 import org.kohsuke.github.GitHub;
-import org.kohsuke.github.GitHubBuilder;
-import org.kohsuke.github.extras.okhttp3.OkHttpGitHubConnector;
 import picocli.CommandLine;
 
 @CommandLine.Command(name = "GitOrganizationWriters", mixinStandardHelpOptions = true, version = "GitOrganizationWriters 0.1", description = """
@@ -38,13 +67,25 @@ import picocli.CommandLine;
 public class GitOrganizationWriters implements Runnable {
     public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitOrganizationWriters.class.getPackageName());
 
-    @CommandLine.Parameters(index = "0", description = "The organizations to check", split = ",")
+    @CommandLine.Parameters(index = "0", description = "The organizations to check; not needed with --query", split = ",", arity = "0..1")
     private List<String> organizations;
 
     @CommandLine.Option(names = { "-o",
-            "--output-file" }, description = "Name of the output file", defaultValue = "github-writers.md")
+            "--output-file" }, description = "Name of the output file; github-writers.md, .jsonl or .csv by default, " +
+            "depending on the --format")
     private String outputFile;
 
+    @CommandLine.Option(names = { "-f",
+            "--format" }, description = "Format of the output file (markdown, jsonl, csv). jsonl and csv stream a " +
+            "record per access found, as it is found, and an incomplete record for each repository whose access could " +
+            "not be fully determined", defaultValue = "markdown")
+    private String outputFormat;
+
+    @CommandLine.Option(names = {
+            "--markdown-file" }, description = "With --format jsonl or csv, also write the sorted markdown writer " +
+            "list to this file once the audit completes")
+    private String markdownFile;
+
     @CommandLine.Option(names = { "-a",
             "--include-archived" }, description = "Whether archived repositories should be included", defaultValue = "false")
     private boolean includeArchived;
@@ -55,7 +96,68 @@ public class GitOrganizationWriters implements Runnable {
             "--detail-level" }, description = "Level of detail to output for each writer (personal, organizations, repositories, full)", defaultValue = "repositories")
     private String detailLevel;
 
-    private final String cacheDir = System.getProperty("user.home") + "/.cache/git-repo-lister-cache";
+    @CommandLine.Option(names = {
+            "--team-resolution" }, description = "How teams with write access are found (repositories, teams). " +
+            "repositories lists the teams of each repository; teams lists the repositories and members of each team " +
+            "once, which needs far fewer requests when an organization has many more repositories than teams", defaultValue = "repositories")
+    private String teamResolution;
+
+    @CommandLine.Option(names = { "-j",
+            "--parallelism" }, description = "Maximum number of repositories to check concurrently. " +
+            "Values greater than 1 check repositories, and all the organizations at once, on virtual threads", defaultValue = "1")
+    private int parallelism;
+
+    @CommandLine.Option(names = {
+            "--snapshot" }, description = "JSON file holding a snapshot of the writers found. If it exists, the output " +
+            "file lists only what changed since it was written, and repositories whose teams and collaborators haven't " +
+            "changed aren't checked again. It is then replaced by a snapshot of this run")
+    private Path snapshotFile;
+
+    @CommandLine.Option(names = {
+            "--query" }, description = "Answer a query from the --snapshot instead of checking GitHub: " +
+            "repo:ORGANIZATION/REPOSITORY lists who can write to a repository, user:LOGIN which repositories a user " +
+            "can write to, and team:ORGANIZATION/TEAM what a team grants. May be repeated")
+    private List<String> queries;
+
+    @CommandLine.Mixin
+    private GitHubClientOptions clientOptions;
+
+    /** Number of repositories whose collaborators are fetched by each GraphQL query */
+    private static final int COLLABORATOR_BATCH_SIZE = 50;
+
+    /** Number of writers whose profiles are fetched by each GraphQL query */
+    private static final int PROFILE_BATCH_SIZE = 100;
+
+    /** Largest page size GitHub allows for a GraphQL connection */
+    private static final int MAX_PAGE_SIZE = 100;
+
+    /** Version of the snapshot format, so a snapshot in an older format is ignored rather than misread */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final ObjectMapper SNAPSHOT_MAPPER = new ObjectMapper()
+            .setDefaultPropertyInclusion(JsonInclude.Include.NON_DEFAULT)
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    /** Used to fetch collaborators' permissions in bulk; {@code null} if GraphQL isn't available */
+    private GitHubGraphQL graphQL;
+
+    /** Repositories whose writers could not all be determined because GitHub kept failing */
+    private final Set<String> incomplete = new ConcurrentSkipListSet<>();
+
+    /** Used to fetch repositories' listings conditionally; {@code null} unless a snapshot is kept */
+    private GitHubRestListing listings;
+
+    /** The snapshot written by the previous run, or {@code null} if there is none */
+    private Snapshot previous;
+
+    /** What each repository's listings granted, by {@code organization/repository} */
+    private final Map<String, RepositoryInputs> inputs = new ConcurrentSkipListMap<>();
+
+    /** Number of repositories whose listings hadn't changed since the previous snapshot */
+    private final AtomicInteger unchangedInputs = new AtomicInteger();
+
+    /** Streams a record per access found; {@code null} if the output is markdown */
+    private RecordWriter records;
 
     public static void main(String[] args) {
         int exitCode = new CommandLine(new GitOrganizationWriters()).execute(args);
@@ -65,55 +167,326 @@ public class GitOrganizationWriters implements Runnable {
     @SuppressWarnings("CallToPrintStackTrace")
     @Override
     public void run() {
+        if (queries != null) {
+            answerQueries();
+            return;
+        }
+        if (organizations == null) {
+            log.severe("No organizations to check");
+            return;
+        }
         try {
             DetailLevel outputLevel = Enum.valueOf(DetailLevel.class, detailLevel.toUpperCase());
+            TeamResolution resolution = Enum.valueOf(TeamResolution.class, teamResolution.toUpperCase());
+            OutputFormat format = Enum.valueOf(OutputFormat.class, outputFormat.toUpperCase());
+            String output = outputFile != null ? outputFile : "github-writers." + format.extension;
+            String markdownOutput = format == OutputFormat.MARKDOWN ? output : markdownFile;
 
             // Connect to GitHub
-            GitHub github = setupGitHubClient();
-
-            Map<String, User> writers = new HashMap<>();
-            for (String organization : organizations) {
-                processOrganization(github, organization, writers);
-            }
-            try (PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
-                TreeSet<User> sortedWriters = new TreeSet<>(writers.values());
-                for (User user : sortedWriters) {
-                    String name = user.ghUser.getName();
-                    if (name == null || name.isEmpty()) {
-                        name = user.ghUser.getLogin();
+            GitHub github = clientOptions.setupGitHubClient();
+            GitHubCredentials credentials = loadCredentials();
+            if (credentials != null) {
+                graphQL = GitHubGraphQL.create(clientOptions.connector(), credentials);
+            }
+            if (snapshotFile != null) {
+                try {
+                    previous = Snapshot.read(snapshotFile);
+                    if (previous == null) {
+                        log.info("❇️ No snapshot found at " + snapshotFile + ", so the full writer list will be written");
                     }
+                } catch (IOException e) {
+                    log.warning("⚠️ The snapshot at " + snapshotFile + " can't be used, so the full writer list will " +
+                            "be written: " + e);
+                }
+                if (credentials != null) {
+                    // The retry policy is below the metadata store, so a 304 reaches us rather than the stored listing
+                    listings = GitHubRestListing.create(clientOptions.connector(), credentials);
+                }
+            }
 
-                    writer.println("### " + name);
-                    writer.println();
-                    writer.println("**GitHub**: [" + user.ghUser.getLogin() + "](" + user.ghUser.getHtmlUrl() + ")");
-                    writer.println();
-
-                    if (outputLevel != DetailLevel.PERSONAL) {
-                        for (Map.Entry<String, Map<String, RepositoryAccess>> entry : user.repositories.entrySet()) {
-                            writer.println("#### Organization: " + entry.getKey());
-                            writer.println();
-                            if (outputLevel != DetailLevel.ORGANIZATIONS) {
-                                for (Map.Entry<String, RepositoryAccess> entry2 : entry.getValue().entrySet()) {
-                                    if (outputLevel == DetailLevel.REPOSITORIES) {
-                                        writer.println(entry2.getValue().getNameSlug() + "  ");
-                                    } else {
-                                        writer.println(entry2.getValue() + "  ");
-                                    }
-                                }
-                                writer.println();
-                            }
-                        }
+            // Everything is aggregated into concurrent, sorted structures, so the output doesn't depend on the
+            // order in which organizations and repositories happen to be processed. Only the markdown and the
+            // snapshot need all the writers at once; streamed records are written without keeping them.
+            Map<String, User> writers = markdownOutput != null || snapshotFile != null ? new ConcurrentHashMap<>() : null;
+            RecordWriter recordWriter = format == OutputFormat.MARKDOWN ? null : RecordWriter.open(Path.of(output),
+                    format.recordFormat, "user", "organization", "repository", "access", "team", "archived");
+            records = recordWriter;
+            try (recordWriter; AuditWorkers workers = new AuditWorkers(parallelism)) {
+                for (String organization : organizations) {
+                    workers.submitOrganization(() -> processOrganization(github, organization, resolution, writers, workers));
+                }
+                workers.awaitCompletion();
+            }
+            if (records != null) {
+                log.info("✔️ " + records.records() + " access records written to " + output);
+            }
+            if (writers == null) {
+                if (!incomplete.isEmpty()) {
+                    log.warning("⚠️ Access to " + incomplete.size() + " repositories could not be fully determined: " +
+                            incomplete);
+                }
+                return;
+            }
+            fetchProfiles(writers.values());
+            if (unchangedInputs.get() > 0) {
+                log.info("❇️ The teams and collaborators of " + unchangedInputs.get() + " repositories were unchanged " +
+                        "since the snapshot was written");
+            }
+            Snapshot current = snapshotFile == null ? null : Snapshot.of(organizations, writers.values(), inputs);
+            if (markdownOutput != null) {
+                try (PrintWriter writer = new PrintWriter(new FileWriter(markdownOutput))) {
+                    if (previous != null) {
+                        writeChanges(writer, previous, current);
+                    } else {
+                        writeReport(writer, writers.values(), outputLevel);
                     }
+                    writeIncomplete(writer);
                 }
             }
-            log.info("✔️ Writer list written to " + outputFile);
+            if (current != null) {
+                // Written only once the output is, so the changes it reports are never lost
+                current.write(snapshotFile);
+                log.info("✔️ Snapshot written to " + snapshotFile);
+            }
+            String written = markdownOutput == null ? "Access records written to " + output
+                    : (previous != null ? "Changes since " + previous.created() : "Writer list") + " written to " + markdownOutput;
+            if (incomplete.isEmpty()) {
+                log.info("✔️ " + written);
+            } else {
+                log.warning("⚠️ " + written + ", but access to " + incomplete.size() +
+                        " repositories could not be fully determined: " + incomplete);
+            }
         } catch (IOException e) {
             log.severe("Error: " + e);
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.severe("Interrupted while waiting for repositories to be checked");
+        } finally {
+            clientOptions.report();
+        }
+    }
+
+    /**
+     * Answers the {@code --query} options from an index of the snapshot, without contacting GitHub
+     */
+    private void answerQueries() {
+        if (snapshotFile == null) {
+            log.severe("--query needs a --snapshot to answer it from");
+            return;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = Snapshot.read(snapshotFile);
+        } catch (IOException e) {
+            log.severe("The snapshot at " + snapshotFile + " can't be used: " + e);
+            return;
+        }
+        if (snapshot == null) {
+            log.severe("No snapshot found at " + snapshotFile);
+            return;
+        }
+        long start = System.nanoTime();
+        WriterAccessIndex index = snapshot.index();
+        log.info("❇️ Indexed " + index.userCount() + " writers, " + index.repositoryCount() + " repositories and " +
+                index.teamCount() + " teams from the snapshot written " + snapshot.created() + " in " +
+                (System.nanoTime() - start) / 1_000_000 + "ms");
+
+        for (String query : queries) {
+            int colon = query.indexOf(':');
+            String subject = query.substring(colon + 1);
+            start = System.nanoTime();
+            switch (colon < 0 ? "" : query.substring(0, colon)) {
+                case "repo" -> {
+                    List<WriterAccessIndex.Grant> grants = index.writers(subject);
+                    if (grants == null) {
+                        System.out.println("Repository " + subject + " isn't in the snapshot");
+                    } else {
+                        System.out.println("Writers of " + subject + ":");
+                        for (WriterAccessIndex.Grant grant : grants) {
+                            System.out.println("- " + snapshot.writers().get(grant.name()).displayName(grant.name()) +
+                                    " (" + grant.name() + ") -- " + grant.reasons());
+                        }
+                    }
+                }
+                case "user" -> {
+                    List<WriterAccessIndex.Grant> grants = index.repositories(subject);
+                    if (grants == null) {
+                        System.out.println("User " + subject + " can't write to any repository in the snapshot");
+                    } else {
+                        System.out.println("Repositories " + subject + " can write to:");
+                        for (WriterAccessIndex.Grant grant : grants) {
+                            System.out.println("- " + grant.name() + " -- " + grant.reasons());
+                        }
+                    }
+                }
+                case "team" -> {
+                    WriterAccessIndex.TeamGrant grant = index.team(subject);
+                    if (grant == null) {
+                        System.out.println("Team " + subject + " doesn't grant write access to any repository in the snapshot");
+                    } else {
+                        System.out.println("Team " + subject + " grants " + grant.members().size() +
+                                " members write access to:");
+                        grant.repositories().forEach(repository -> System.out.println("- " + repository));
+                        System.out.println("Members:");
+                        grant.members().forEach(login -> System.out.println("- " +
+                                snapshot.writers().get(login).displayName(login) + " (" + login + ")"));
+                    }
+                }
+                default -> {
+                    log.severe("Unknown query " + query + "; use repo:ORGANIZATION/REPOSITORY, user:LOGIN or " +
+                            "team:ORGANIZATION/TEAM");
+                    continue;
+                }
+            }
+            log.fine("Answered " + query + " in " + (System.nanoTime() - start) / 1_000 + "µs");
+        }
+    }
+
+    private void writeReport(PrintWriter writer, Collection<User> writers, DetailLevel outputLevel) {
+        TreeSet<User> sortedWriters = new TreeSet<>(writers);
+        for (User user : sortedWriters) {
+            Profile profile = user.profile();
+            writer.println("### " + profile.displayName());
+            writer.println();
+            writer.println("**GitHub**: [" + profile.login() + "](" + profile.htmlUrl() + ")");
+            writer.println();
+
+            if (outputLevel != DetailLevel.PERSONAL) {
+                for (Map.Entry<String, Map<String, RepositoryAccess>> entry : user.repositories.entrySet()) {
+                    writer.println("#### Organization: " + entry.getKey());
+                    writer.println();
+                    if (outputLevel != DetailLevel.ORGANIZATIONS) {
+                        for (Map.Entry<String, RepositoryAccess> entry2 : entry.getValue().entrySet()) {
+                            if (outputLevel == DetailLevel.REPOSITORIES) {
+                                writer.println(entry2.getValue().getNameSlug() + "  ");
+                            } else {
+                                writer.println(entry2.getValue() + "  ");
+                            }
+                        }
+                        writer.println();
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeIncomplete(PrintWriter writer) {
+        if (!incomplete.isEmpty()) {
+            writer.println("### Incomplete repositories");
+            writer.println();
+            writer.println("GitHub failed transiently while these repositories were checked, so some of their writers may be missing:");
+            writer.println();
+            for (String repository : incomplete) {
+                writer.println("- " + repository);
+            }
+            writer.println();
         }
     }
 
-    private void processOrganization(GitHub github, String organization, Map<String, User> writers) throws IOException {
+    /**
+     * Writes what changed since the previous snapshot: writers that were added or lost all their access, writers
+     * whose access changed, and repositories that gained or lost a team. Only organizations audited by both runs are
+     * compared, and repositories whose access couldn't be fully determined are left out, so their missing writers
+     * aren't reported as revoked.
+     */
+    private void writeChanges(PrintWriter writer, Snapshot before, Snapshot after) {
+        Set<String> compared = new HashSet<>(before.organizations());
+        compared.retainAll(after.organizations());
+        Map<String, Map<String, AccessSnapshot>> accessBefore = before.access(compared, incomplete);
+        Map<String, Map<String, AccessSnapshot>> accessAfter = after.access(compared, incomplete);
+
+        writer.println("## Changes since " + before.created());
+        writer.println();
+        boolean changed = false;
+
+        List<String> added = new ArrayList<>(accessAfter.keySet());
+        added.removeAll(accessBefore.keySet());
+        if (!added.isEmpty()) {
+            changed = true;
+            writer.println("### New writers");
+            writer.println();
+            for (String login : after.sorted(added)) {
+                writer.println("- " + after.writers().get(login).describe(login));
+                accessAfter.get(login).forEach((repository, access) ->
+                        writer.println("  - " + repository + " -- " + access.reasons()));
+            }
+            writer.println();
+        }
+
+        List<String> revoked = new ArrayList<>(accessBefore.keySet());
+        revoked.removeAll(accessAfter.keySet());
+        if (!revoked.isEmpty()) {
+            changed = true;
+            writer.println("### Revoked writers");
+            writer.println();
+            for (String login : before.sorted(revoked)) {
+                writer.println("- " + before.writers().get(login).describe(login));
+                accessBefore.get(login).forEach((repository, access) ->
+                        writer.println("  - " + repository + " -- was " + access.reasons()));
+            }
+            writer.println();
+        }
+
+        List<String> kept = new ArrayList<>(accessAfter.keySet());
+        kept.retainAll(accessBefore.keySet());
+        kept.removeIf(login -> accessBefore.get(login).equals(accessAfter.get(login)));
+        if (!kept.isEmpty()) {
+            changed = true;
+            writer.println("### Changed access");
+            writer.println();
+            for (String login : after.sorted(kept)) {
+                writer.println("- " + after.writers().get(login).describe(login));
+                Set<String> repositories = new TreeSet<>(accessBefore.get(login).keySet());
+                repositories.addAll(accessAfter.get(login).keySet());
+                for (String repository : repositories) {
+                    AccessSnapshot was = accessBefore.get(login).get(repository);
+                    AccessSnapshot is = accessAfter.get(login).get(repository);
+                    if (was == null) {
+                        writer.println("  - gained " + repository + " -- " + is.reasons());
+                    } else if (is == null) {
+                        writer.println("  - lost " + repository + " -- was " + was.reasons());
+                    } else if (!was.equals(is)) {
+                        writer.println("  - changed " + repository + " -- was " + was.reasons() + "; now " + is.reasons());
+                    }
+                }
+            }
+            writer.println();
+        }
+
+        Map<String, Set<String>> teamsBefore = Snapshot.teams(accessBefore);
+        Map<String, Set<String>> teamsAfter = Snapshot.teams(accessAfter);
+        Set<String> repositories = new TreeSet<>(teamsBefore.keySet());
+        repositories.addAll(teamsAfter.keySet());
+        List<String> teamChanges = new ArrayList<>();
+        for (String repository : repositories) {
+            Set<String> gained = new TreeSet<>(teamsAfter.getOrDefault(repository, Set.of()));
+            gained.removeAll(teamsBefore.getOrDefault(repository, Set.of()));
+            Set<String> lost = new TreeSet<>(teamsBefore.getOrDefault(repository, Set.of()));
+            lost.removeAll(teamsAfter.getOrDefault(repository, Set.of()));
+            if (!gained.isEmpty() || !lost.isEmpty()) {
+                teamChanges.add("- " + repository + " -- "
+                        + (gained.isEmpty() ? "" : "gained teams=" + gained + (lost.isEmpty() ? "" : ", "))
+                        + (lost.isEmpty() ? "" : "lost teams=" + lost));
+            }
+        }
+        if (!teamChanges.isEmpty()) {
+            changed = true;
+            writer.println("### Team changes");
+            writer.println();
+            teamChanges.forEach(writer::println);
+            writer.println();
+        }
+
+        if (!changed) {
+            writer.println("No changes.");
+            writer.println();
+        }
+    }
+
+    private void processOrganization(GitHub github, String organization, TeamResolution resolution,
+                                     Map<String, User> writers, AuditWorkers workers)
+            throws IOException, InterruptedException {
         GHOrganization org = github.getOrganization(organization);
         if (org == null) {
             log.severe("Organization not found: " + organization);
@@ -121,137 +494,656 @@ public class GitOrganizationWriters implements Runnable {
         }
         log.info("❇️ Preparing to list owners for organization " + org.getLogin());
 
-        Set<User> owners = new HashSet<>();
-        for (GHUser user : org.listMembersWithRole("admin")) {
-            owners.add(writers.computeIfAbsent(user.getLogin(), k -> new User(user)));
+        List<GHUser> owners = org.listMembersWithRole("admin").toList();
+        Set<String> ownerLogins = new HashSet<>();
+        Set<User> ownerWriters = new HashSet<>();
+        for (GHUser user : owners) {
+            ownerLogins.add(user.getLogin());
+            if (writers != null) {
+                ownerWriters.add(writers.computeIfAbsent(user.getLogin(), k -> new User(user)));
+            }
         }
 
-        Map<String, Set<GHUser>> orgTeams = new HashMap<>();
+        TeamAccess teamAccess = new RepositoryTeamAccess(org);
+        if (resolution == TeamResolution.TEAMS) {
+            try {
+                teamAccess = OrganizationTeamAccess.resolve(org);
+            } catch (IOException | UncheckedIOException e) {
+                if (!GitHubRetryPolicy.isTransient(e)) {
+                    throw e;
+                }
+                log.warning("⚠️ The teams of organization " + org.getLogin() + " could not be listed as GitHub " +
+                        "failed transiently; the teams of each repository will be listed instead: " + e);
+            }
+        }
+
+        List<GHRepository> batch = new ArrayList<>();
         for (GHRepository repository : org.listRepositories()) {
+            if (workers.failed()) {
+                // The audit is being aborted, so there's no point in listing further repositories
+                return;
+            }
 
             boolean archived = repository.isArchived();
             if (archived && !includeArchived) {
                 continue;
             }
 
-            for (User owner : owners) {
+            for (User owner : ownerWriters) {
                 owner.addOwnerAccess(organization, repository.getName(), archived);
             }
-            for (GHTeam team : repository.getTeams()) {
-                if (hasWritePermission(team)) {
-                    log.info("❇️ Preparing to list collaborators for repository/team " + repository.getName() + "/" + team.getName());
-                    for (GHUser member : orgTeams.computeIfAbsent(team.getName(), k -> safeGetMembers(team))) {
-                        writers.computeIfAbsent(member.getLogin(), k -> new User(member))
-                                .addTeamAccess(organization, repository.getName(), archived, team.getName());
+            for (String owner : ownerLogins) {
+                record(owner, organization, repository.getName(), "owner", null, archived);
+            }
+            batch.add(repository);
+            if (batch.size() == COLLABORATOR_BATCH_SIZE) {
+                submitBatch(github, organization, batch, ownerLogins, teamAccess, writers, workers);
+                batch = new ArrayList<>();
+            }
+        }
+        submitBatch(github, organization, batch, ownerLogins, teamAccess, writers, workers);
+    }
+
+    /**
+     * Fetches the collaborators of a batch of repositories, then hands the repositories to the workers
+     */
+    private void submitBatch(GitHub github, String organization, List<GHRepository> batch, Set<String> owners,
+                             TeamAccess teamAccess, Map<String, User> writers, AuditWorkers workers) throws InterruptedException {
+        // Collaborators are taken from the repositories' listings when a snapshot is kept
+        Map<String, Set<String>> collaboratorWriters = listings != null ? Map.of() : fetchCollaboratorWriters(organization, batch);
+        for (GHRepository repository : batch) {
+            workers.submitRepository(() -> {
+                try {
+                    processRepository(github, organization, repository, repository.isArchived(), owners, teamAccess,
+                            writers, collaboratorWriters.get(repository.getName()));
+                } catch (IOException | UncheckedIOException e) {
+                    // Requests have already been retried, so don't let one repository abort the whole audit
+                    if (!GitHubRetryPolicy.isTransient(e)) {
+                        throw e;
                     }
-                } else {
-                    log.info("❇️ repository/team " + repository.getName() + "/" + team.getName() + " only has permission " + team.getPermission());
+                    log.warning("⚠️ Access to repository " + repository.getName() + " could not be fully determined " +
+                            "as GitHub failed transiently: " + e);
+                    incomplete.add(organization + "/" + repository.getName());
+                    // Some of the repository's records may already have been written, so mark them as partial
+                    record(null, organization, repository.getName(), "incomplete", null, repository.isArchived());
+                }
+            });
+        }
+    }
+
+    /**
+     * @param owners              logins of the organization's owners
+     * @param writers             the writers found so far, or {@code null} if they aren't kept
+     * @param collaboratorWriters logins of the repository's collaborators with write access, as fetched by
+     *                            {@link #fetchCollaboratorWriters}, or {@code null} to check each collaborator's
+     *                            permission via the REST API
+     */
+    private void processRepository(GitHub github, String organization, GHRepository repository, boolean archived,
+                                   Set<String> owners, TeamAccess teamAccess, Map<String, User> writers,
+                                   Set<String> collaboratorWriters) throws IOException, InterruptedException {
+        RepositoryInputs repositoryInputs = null;
+        Map<String, Set<GHUser>> teams;
+        if (listings != null) {
+            repositoryInputs = fetchInputs(organization, repository.getName());
+            teams = teamAccess.writers(repository, repositoryInputs.teams());
+            collaboratorWriters = repositoryInputs.collaboratorWriters();
+        } else {
+            teams = teamAccess.writers(repository);
+        }
+        // Everyone known to have write access to the repository as an owner or via a team
+        Set<String> withAccess = new HashSet<>(owners);
+        for (Map.Entry<String, Set<GHUser>> team : teams.entrySet()) {
+            for (GHUser member : team.getValue()) {
+                withAccess.add(member.getLogin());
+                if (writers != null) {
+                    writers.computeIfAbsent(member.getLogin(), k -> new User(member))
+                            .addTeamAccess(organization, repository.getName(), archived, team.getKey());
                 }
+                record(member.getLogin(), organization, repository.getName(), "team", team.getKey(), archived);
             }
-            log.info("❇️ Preparing to list collaborators with possible direct write permissions for repository " + repository.getName());
+        }
+        if (collaboratorWriters != null) {
+            for (String login : collaboratorWriters) {
+                if (withAccess.add(login)) {
+                    // This collaborator doesn't have write access as an owner or via a team,
+                    // so they have it as an individual
+                    if (writers != null) {
+                        getWriter(github, login, writers).addCollaboratorAccess(organization, repository.getName(), archived);
+                    }
+                    record(login, organization, repository.getName(), "collaborator", null, archived);
+                }
+            }
+            if (repositoryInputs != null) {
+                // Only recorded once the repository has been fully checked, so an incomplete one is checked again
+                inputs.put(organization + "/" + repository.getName(), repositoryInputs);
+            }
+            return;
+        }
+        log.info("❇️ Preparing to list collaborators with possible direct write permissions for repository " + repository.getName());
 
-            for (GHUser collaborator : repository.listCollaborators()) {
-                User user = writers.get(collaborator.getLogin());
-                if (user == null || !user.hasRepositoryAccess(organization, repository.getName())) {
-                    // This collaborator doesn't have write access as an owner or via a team;
-                    // see if they have it as an individual
-                    GHPermissionType permission = repository.getPermission(collaborator);
-                    if (permission == GHPermissionType.ADMIN || permission == GHPermissionType.WRITE) {
+        for (GHUser collaborator : repository.listCollaborators()) {
+            if (!withAccess.contains(collaborator.getLogin())) {
+                // This collaborator doesn't have write access as an owner or via a team;
+                // see if they have it as an individual
+                GHPermissionType permission = repository.getPermission(collaborator);
+                if (permission == GHPermissionType.ADMIN || permission == GHPermissionType.WRITE) {
+                    withAccess.add(collaborator.getLogin());
+                    if (writers != null) {
                         writers.computeIfAbsent(collaborator.getLogin(), k -> new User(collaborator))
                                 .addCollaboratorAccess(organization, repository.getName(), archived);
                     }
+                    record(collaborator.getLogin(), organization, repository.getName(), "collaborator", null, archived);
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams a record of a user's access to a repository, if records are being written
+     *
+     * @param login  the user, or {@code null} for an {@code incomplete} marker
+     * @param access how the user has access: {@code owner}, {@code team} or {@code collaborator}; or
+     *               {@code incomplete}, marking a repository whose access could not be fully determined
+     * @param team   the team the access comes through, or {@code null}
+     */
+    private void record(String login, String organization, String repository, String access, String team,
+                        boolean archived) throws IOException {
+        if (records != null) {
+            records.write(login, organization, repository, access, team, archived);
+        }
+    }
+
+    /**
+     * Gets the writer with the given login, fetching their profile if they aren't a writer yet
+     */
+    private User getWriter(GitHub github, String login, Map<String, User> writers) throws IOException {
+        User user = writers.get(login);
+        if (user == null) {
+            GHUser ghUser = github.getUser(login);
+            user = writers.computeIfAbsent(login, k -> new User(ghUser));
+        }
+        return user;
+    }
+
+    /**
+     * Fetches the profiles of all the writers before they are sorted, so that sorting them and writing the output
+     * make no requests. Profiles are fetched with GraphQL queries that cover 100 writers each, and any that those
+     * couldn't resolve are fetched concurrently via the REST API.
+     */
+    private void fetchProfiles(Collection<User> writers) {
+        log.info("❇️ Fetching the profiles of " + writers.size() + " writers");
+        List<User> pending = new ArrayList<>(writers);
+        if (graphQL != null) {
+            List<User> unresolved = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i += PROFILE_BATCH_SIZE) {
+                List<User> batch = pending.subList(i, Math.min(i + PROFILE_BATCH_SIZE, pending.size()));
+                try {
+                    unresolved.addAll(fetchProfileBatch(batch));
+                } catch (IOException e) {
+                    log.warning("⚠️ Fetching profiles with GraphQL failed for " + batch.size() +
+                            " writers; they will be fetched individually: " + e);
+                    unresolved.addAll(batch);
                 }
             }
+            pending = unresolved;
         }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (User user : pending) {
+                executor.execute(user::fetchProfile);
+            }
+        }
+    }
+
+    /**
+     * @return the writers whose profiles the query couldn't resolve, e.g. because they are bots
+     */
+    private List<User> fetchProfileBatch(List<User> batch) throws IOException {
+        StringBuilder query = new StringBuilder("query {\n");
+        for (int i = 0; i < batch.size(); i++) {
+            query.append("  u").append(i).append(": user(login: ").append(GitHubGraphQL.literal(batch.get(i).login()))
+                    .append(") { name url }\n");
+        }
+        JsonNode data = graphQL.query(query.append("}\n").toString());
+        List<User> unresolved = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            JsonNode user = data.path("u" + i);
+            if (user.isObject()) {
+                batch.get(i).setProfile(new Profile(batch.get(i).login(), user.path("name").asText(null),
+                        user.path("url").asText()));
+            } else {
+                unresolved.add(batch.get(i));
+            }
+        }
+        return unresolved;
+    }
+
+    private GitHubCredentials loadCredentials() {
+        try {
+            return GitHubCredentials.fromPropertyFile();
+        } catch (IOException e) {
+            log.warning("⚠️ GraphQL is not available, so the permission of each collaborator will be checked " +
+                    "individually" + (snapshotFile != null ? ", and every repository will be checked again" : "") + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches a repository's teams and collaborators listings, each conditionally on its {@code ETag} in the previous
+     * snapshot. What an unchanged listing granted is taken from the previous snapshot rather than worked out again.
+     */
+    private RepositoryInputs fetchInputs(String organization, String repository) throws IOException {
+        String path = "/repos/" + organization + "/" + repository;
+        RepositoryInputs before = previous == null ? null : previous.inputs().get(organization + "/" + repository);
+        GitHubRestListing.Listing teams = listings.fetch(path + "/teams", before == null ? null : before.teamsEtag());
+        GitHubRestListing.Listing collaborators = listings.fetch(path + "/collaborators",
+                before == null ? null : before.collaboratorsEtag());
+        if (teams == null && collaborators == null) {
+            log.fine("The teams and collaborators of repository " + repository + " haven't changed");
+            unchangedInputs.incrementAndGet();
+        }
+
+        List<TeamRef> writeTeams = new ArrayList<>();
+        if (teams == null) {
+            writeTeams = before.teams();
+        } else {
+            for (JsonNode team : teams.items()) {
+                String permission = team.path("permission").asText();
+                if (hasPushPermission(permission)) {
+                    writeTeams.add(new TeamRef(team.path("id").asLong(), team.path("name").asText()));
+                } else {
+                    log.info("❇️ repository/team " + repository + "/" + team.path("name").asText() + " only has permission " + permission);
+                }
+            }
+        }
+        Set<String> collaboratorWriters = new TreeSet<>();
+        if (collaborators == null) {
+            collaboratorWriters = before.collaboratorWriters();
+        } else {
+            for (JsonNode collaborator : collaborators.items()) {
+                // Push access includes maintain and admin
+                if (collaborator.path("permissions").path("push").asBoolean()) {
+                    collaboratorWriters.add(collaborator.path("login").asText());
+                }
+            }
+        }
+        return new RepositoryInputs(teams == null ? before.teamsEtag() : teams.etag(), writeTeams,
+                collaborators == null ? before.collaboratorsEtag() : collaborators.etag(), collaboratorWriters);
+    }
+
+    /**
+     * Fetches the logins of the collaborators with write access to each repository of a batch, using one GraphQL
+     * query for the whole batch. The collaborators listing includes each collaborator's permission, so no request
+     * per collaborator is needed. Repositories the query couldn't resolve are absent from the result, and their
+     * collaborators are checked via the REST API when they are processed.
+     */
+    private Map<String, Set<String>> fetchCollaboratorWriters(String organization, List<GHRepository> batch) {
+        Map<String, Set<String>> result = new HashMap<>();
+        if (graphQL == null || batch.isEmpty()) {
+            return result;
+        }
+        log.info("❇️ Fetching the collaborators of " + batch.size() + " repositories");
+        JsonNode data;
+        try {
+            StringBuilder query = new StringBuilder("query {\n");
+            for (int i = 0; i < batch.size(); i++) {
+                query.append(collaboratorsQuery("r" + i, organization, batch.get(i).getName(), null));
+            }
+            data = graphQL.query(query.append("}\n").toString());
+        } catch (IOException e) {
+            log.warning("⚠️ Fetching collaborators with GraphQL failed for " + batch.size() +
+                    " repositories; they will be checked individually: " + e);
+            return result;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            String name = batch.get(i).getName();
+            JsonNode collaborators = data.path("r" + i).path("collaborators");
+            Set<String> logins = new HashSet<>();
+            try {
+                while (true) {
+                    if (!collaborators.isObject()) {
+                        throw new IOException("the collaborators of repository " + name + " were not returned");
+                    }
+                    for (JsonNode edge : collaborators.path("edges")) {
+                        if (hasWritePermission(edge.path("permission").asText())) {
+                            logins.add(edge.path("node").path("login").asText());
+                        }
+                    }
+                    JsonNode pageInfo = collaborators.path("pageInfo");
+                    if (!pageInfo.path("hasNextPage").asBoolean()) {
+                        break;
+                    }
+                    // Only repositories with more than a page of collaborators need further queries
+                    collaborators = graphQL.query("query {\n" + collaboratorsQuery("r0", organization, name,
+                            pageInfo.path("endCursor").asText()) + "}\n").path("r0").path("collaborators");
+                }
+                result.put(name, logins);
+            } catch (IOException e) {
+                log.fine("Fetching collaborators with GraphQL failed for repository " + name +
+                        "; it will be checked individually: " + e);
+            }
+        }
+        return result;
+    }
+
+    private static String collaboratorsQuery(String alias, String organization, String repository, String after) {
+        return "  " + alias + ": repository(owner: " + GitHubGraphQL.literal(organization)
+                + ", name: " + GitHubGraphQL.literal(repository) + ") {\n"
+                + "    collaborators(first: " + MAX_PAGE_SIZE + (after == null ? "" : ", after: " + GitHubGraphQL.literal(after))
+                + ") { pageInfo { hasNextPage endCursor } edges { permission node { login } } }\n"
+                + "  }\n";
     }
 
-    private boolean hasWritePermission(GHTeam team) {
-        return switch (team.getPermission()) {
+    /**
+     * Whether a GraphQL {@code RepositoryPermission} allows pushing, as the REST permission check's
+     * {@code admin} and {@code write} (which includes {@code maintain}) do
+     */
+    private static boolean hasWritePermission(String permission) {
+        return switch (permission) {
+            case "ADMIN", "MAINTAIN", "WRITE" -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean hasWritePermission(GHTeam team) {
+        return hasPushPermission(team.getPermission());
+    }
+
+    /**
+     * Whether a team's REST {@code permission} on a repository allows pushing
+     */
+    private static boolean hasPushPermission(String permission) {
+        return switch (permission) {
             case "admin", "maintain", "push" -> true;
             default -> false;
         };
     }
 
-    private Set<GHUser> safeGetMembers(GHTeam team) {
-        try {
-            return team.getMembers();
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    /**
+     * Finds the teams that give write access to a repository
+     */
+    private interface TeamAccess {
+        /**
+         * @return the members of each team with write access to the repository, by team name
+         */
+        Map<String, Set<GHUser>> writers(GHRepository repository) throws IOException, InterruptedException;
+
+        /**
+         * @param teams the teams with write access to the repository, as found in its teams listing
+         * @return the members of each team with write access to the repository, by team name
+         */
+        default Map<String, Set<GHUser>> writers(GHRepository repository, List<TeamRef> teams)
+                throws IOException, InterruptedException {
+            return writers(repository);
         }
     }
 
     /**
-     * Set up GitHub client with caching to reduce API calls
+     * Lists the teams of each repository. The members of each team are fetched once per organization.
      */
-    public GitHub setupGitHubClient() throws IOException {
+    private static class RepositoryTeamAccess implements TeamAccess {
+        private final Map<Long, Future<Set<GHUser>>> members = new ConcurrentHashMap<>();
 
-        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder();
+        /** Lists the organization's teams by id */
+        private final Callable<Map<Long, GHTeam>> listTeams;
 
-        if (ensureDirectoryExists(cacheDir)) {
-            log.finest("Cache directory: " + cacheDir);
-            Cache cache = new Cache(Path.of(cacheDir).toFile(), 10 * 1024 * 1024); // 10MB cache
-            clientBuilder.cache(cache);
-        } else {
-            log.finest("Cannot create cache directory at " + cacheDir + " -- will use a non-caching GitHub API connector");
+        /** The organization's teams by id, listed the first time a team is looked up by id */
+        private final AtomicReference<FutureTask<Map<Long, GHTeam>>> teams;
+
+        private RepositoryTeamAccess(GHOrganization org) {
+            this.listTeams = () -> {
+                Map<Long, GHTeam> result = new HashMap<>();
+                for (GHTeam team : org.listTeams().withPageSize(MAX_PAGE_SIZE)) {
+                    result.put(team.getId(), team);
+                }
+                return result;
+            };
+            this.teams = new AtomicReference<>(new FutureTask<>(listTeams));
+        }
+
+        @Override
+        public Map<String, Set<GHUser>> writers(GHRepository repository) throws IOException, InterruptedException {
+            Map<String, Set<GHUser>> result = new HashMap<>();
+            for (GHTeam team : repository.getTeams()) {
+                if (hasWritePermission(team)) {
+                    log.info("❇️ Preparing to list collaborators for repository/team " + repository.getName() + "/" + team.getName());
+                    result.put(team.getName(), getMembers(team));
+                } else {
+                    log.info("❇️ repository/team " + repository.getName() + "/" + team.getName() + " only has permission " + team.getPermission());
+                }
+            }
+            return result;
         }
 
-        log.finest("Creating GitHub API connector");
-        var connector = new OkHttpGitHubConnector(clientBuilder.build());
+        @Override
+        public Map<String, Set<GHUser>> writers(GHRepository repository, List<TeamRef> teams)
+                throws IOException, InterruptedException {
+            Map<String, Set<GHUser>> result = new HashMap<>();
+            for (TeamRef ref : teams) {
+                GHTeam team = getTeam(ref.id());
+                if (team == null) {
+                    // The team was deleted after the repository's teams were listed
+                    log.fine("Team " + ref.name() + " of repository " + repository.getName() + " no longer exists");
+                } else {
+                    result.put(ref.name(), getMembers(team));
+                }
+            }
+            return result;
+        }
 
-        GitHub gh = GitHubBuilder.fromPropertyFile()
-                .withConnector(connector)
-                .build();
-        log.finest("Connected successfully");
-        return gh;
-    }
+        /**
+         * Looks up a team, listing the organization's teams once. As with {@link #getMembers}, a failed listing isn't
+         * remembered, so the next lookup tries again.
+         */
+        private GHTeam getTeam(long id) throws IOException, InterruptedException {
+            FutureTask<Map<Long, GHTeam>> listing = teams.get();
+            // Only the first caller lists the teams; the others wait for it
+            listing.run();
+            try {
+                return listing.get().get(id);
+            } catch (ExecutionException e) {
+                teams.compareAndSet(listing, new FutureTask<>(listTeams));
+                throw unwrap(e);
+            }
+        }
 
-    private boolean ensureDirectoryExists(String dirPath) {
-        Path path = Path.of(dirPath);
-        if (!Files.exists(path)) {
+        /**
+         * Fetches a team's members once, however many repositories ask for them concurrently.
+         * A failed fetch isn't remembered, so the next repository with the team tries again.
+         */
+        private Set<GHUser> getMembers(GHTeam team) throws IOException, InterruptedException {
+            FutureTask<Set<GHUser>> fetch = new FutureTask<>(team::getMembers);
+            Future<Set<GHUser>> result = members.putIfAbsent(team.getId(), fetch);
+            if (result == null) {
+                result = fetch;
+                fetch.run();
+            }
             try {
-                Files.createDirectories(path);
-                return true;
-            } catch (IOException e) {
-                log.warning("⚠️ Failed to create directory: " + dirPath + " -- request caching will not be available");
-                return false;
+                return result.get();
+            } catch (ExecutionException e) {
+                members.remove(team.getId(), result);
+                throw unwrap(e);
+            }
+        }
+    }
+
+    /**
+     * Resolves team access up front from the organization's teams, so the number of requests grows with the number
+     * of teams rather than the number of repositories. Each team's child teams, repositories and members are
+     * listed once, and repositories are then joined with the teams in memory.
+     * <p>
+     * A child team inherits the access of its parent, and a team's members include the members of its child teams.
+     * Access to a repository is attributed to the topmost team that grants it, as that is the team that lists the
+     * repository among its teams.
+     */
+    private static class OrganizationTeamAccess implements TeamAccess {
+        /** Members of each team with write access, by repository name and then by team name */
+        private final Map<String, Map<String, Set<GHUser>>> grants;
+
+        private OrganizationTeamAccess(Map<String, Map<String, Set<GHUser>>> grants) {
+            this.grants = grants;
+        }
+
+        static OrganizationTeamAccess resolve(GHOrganization org) throws IOException, InterruptedException {
+            List<GHTeam> teams = org.listTeams().withPageSize(MAX_PAGE_SIZE).toList();
+            log.info("❇️ Preparing to list the repositories and members of " + teams.size() + " teams in organization " + org.getLogin());
+            Map<Long, Future<TeamListing>> fetches = new HashMap<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (GHTeam team : teams) {
+                    fetches.put(team.getId(), executor.submit(() -> TeamListing.fetch(team)));
+                }
+            }
+            Map<Long, TeamListing> listings = new HashMap<>();
+            for (Map.Entry<Long, Future<TeamListing>> entry : fetches.entrySet()) {
+                try {
+                    listings.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
             }
+
+            Map<Long, Long> parents = new HashMap<>();
+            for (TeamListing listing : listings.values()) {
+                for (long child : listing.children()) {
+                    parents.put(child, listing.team().getId());
+                }
+            }
+            Map<Long, Set<GHUser>> members = new HashMap<>();
+            Map<String, Map<String, Set<GHUser>>> grants = new HashMap<>();
+            for (TeamListing listing : listings.values()) {
+                for (String repository : listing.writeRepositories()) {
+                    if (!inherits(listing.team().getId(), repository, parents, listings)) {
+                        grants.computeIfAbsent(repository, k -> new HashMap<>())
+                                .put(listing.team().getName(), members(listing.team().getId(), listings, members));
+                    }
+                }
+            }
+            return new OrganizationTeamAccess(grants);
+        }
+
+        /**
+         * Whether a team's write access to a repository comes from one of its ancestors
+         */
+        private static boolean inherits(long team, String repository, Map<Long, Long> parents,
+                                        Map<Long, TeamListing> listings) {
+            for (Long parent = parents.get(team); parent != null; parent = parents.get(parent)) {
+                if (listings.get(parent).writeRepositories().contains(repository)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The members of a team and of all its descendants
+         */
+        private static Set<GHUser> members(long team, Map<Long, TeamListing> listings, Map<Long, Set<GHUser>> members) {
+            Set<GHUser> result = members.get(team);
+            if (result == null) {
+                TeamListing listing = listings.get(team);
+                result = new HashSet<>(listing.members());
+                for (long child : listing.children()) {
+                    // Secret child teams may not be visible
+                    if (listings.containsKey(child)) {
+                        result.addAll(members(child, listings, members));
+                    }
+                }
+                members.put(team, result);
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Set<GHUser>> writers(GHRepository repository) {
+            return grants.getOrDefault(repository.getName(), Map.of());
+        }
+    }
+
+    /**
+     * What {@link OrganizationTeamAccess} needs to know about a team
+     *
+     * @param children          ids of the team's child teams
+     * @param writeRepositories names of the repositories the team can push to, directly or inherited
+     * @param members           the team's members
+     */
+    private record TeamListing(GHTeam team, List<Long> children, Set<String> writeRepositories, Set<GHUser> members) {
+
+        static TeamListing fetch(GHTeam team) throws IOException {
+            List<Long> children = new ArrayList<>();
+            for (GHTeam child : team.listChildTeams().withPageSize(MAX_PAGE_SIZE)) {
+                children.add(child.getId());
+            }
+            Set<String> writeRepositories = new HashSet<>();
+            for (GHRepository repository : team.listRepositories().withPageSize(MAX_PAGE_SIZE)) {
+                // A team's repositories carry the team's permissions, and push access includes maintain and admin
+                if (repository.hasPushAccess()) {
+                    writeRepositories.add(repository.getName());
+                }
+            }
+            return new TeamListing(team, children, writeRepositories, team.listMembers().withPageSize(MAX_PAGE_SIZE).toSet());
         }
-        return true;
     }
 
-    private static class User implements Comparable<User> {
+    /**
+     * Unwraps the failure of a fetch run on another thread
+     */
+    private static IOException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof IOException ioe) {
+            return ioe;
+        } else if (e.getCause() instanceof RuntimeException re) {
+            throw re;
+        }
+        throw new IllegalStateException(e.getCause());
+    }
+
+    /**
+     * A user with write access to at least one repository. Package-private, as are its methods, for the benchmarks.
+     */
+    static class User implements Comparable<User> {
 
         private final GHUser ghUser;
-        private final Map<String, Map<String, RepositoryAccess>> repositories = new TreeMap<>();
+        private final Map<String, Map<String, RepositoryAccess>> repositories = new ConcurrentSkipListMap<>();
+        private Profile profile;
 
-        private User(GHUser ghUser) {
+        User(GHUser ghUser) {
             this.ghUser = ghUser;
         }
 
+        /**
+         * Compares users by their {@link #profile()}, so comparing makes no requests
+         */
         @Override
         public int compareTo(@NotNull User o) {
             if (ghUser.getId() == o.ghUser.getId()) {
                 return 0;
             }
+            // Break ties by login, so users sharing a name are always written in the same order
+            int retval = profile().displayName().compareTo(o.profile().displayName());
+            return retval != 0 ? retval : login().compareTo(o.login());
+        }
+
+        String login() {
+            return ghUser.getLogin();
+        }
+
+        /**
+         * @return the profile fetched for the user, or one with just their login if it hasn't been fetched
+         */
+        Profile profile() {
+            return profile != null ? profile : new Profile(login(), null, String.valueOf(ghUser.getHtmlUrl()));
+        }
+
+        void setProfile(Profile profile) {
+            this.profile = profile;
+        }
+
+        /**
+         * Fetches the user's profile via the REST API. If that fails, the user is listed by login.
+         */
+        void fetchProfile() {
             try {
-                String ourName = ghUser.getName();
-                if (ourName == null || ourName.isEmpty()) {
-                    ourName = ghUser.getLogin();
-                }
-                String theirName = o.ghUser.getName();
-                if (theirName == null || theirName.isEmpty()) {
-                    theirName = o.ghUser.getLogin();
-                }
-                if (ourName == null) {
-                    return -1;
-                } else if (theirName == null) {
-                    return 1;
-                } else {
-                    int retval = ourName.compareTo(theirName);
-                    return retval == 0 ? -1 : retval;
-                }
-            } catch (IOException ioe) {
-                throw new RuntimeException(ioe);
+                setProfile(new Profile(login(), ghUser.getName(), String.valueOf(ghUser.getHtmlUrl())));
+            } catch (IOException | UncheckedIOException e) {
+                log.warning("⚠️ The profile of " + login() + " could not be fetched, so they are listed by login: " + e);
             }
         }
 
@@ -260,34 +1152,46 @@ public class GitOrganizationWriters implements Runnable {
             return ghUser.getLogin();
         }
 
-        private void addOwnerAccess(String organization, String repository, boolean archived) {
+        void addOwnerAccess(String organization, String repository, boolean archived) {
             getRepositoryAccess(organization, repository, archived).owner = true;
         }
 
-        private void addCollaboratorAccess(String organization, String repository, boolean archived) {
+        void addCollaboratorAccess(String organization, String repository, boolean archived) {
             getRepositoryAccess(organization, repository, archived).collaborator = true;
         }
 
-        private void addTeamAccess(String organization, String repository, boolean archived, String team) {
+        void addTeamAccess(String organization, String repository, boolean archived, String team) {
             getRepositoryAccess(organization, repository, archived).addTeamAccess(team);
         }
 
-        private RepositoryAccess getRepositoryAccess(String organization, String repository, boolean archived) {
-            return repositories.computeIfAbsent(organization, key -> new TreeMap<>())
+        RepositoryAccess getRepositoryAccess(String organization, String repository, boolean archived) {
+            return repositories.computeIfAbsent(organization, key -> new ConcurrentSkipListMap<>())
                     .computeIfAbsent(repository, key -> new RepositoryAccess(repository, archived));
         }
 
-        private boolean hasRepositoryAccess(String organization, String repository) {
+        boolean hasRepositoryAccess(String organization, String repository) {
             Map<String, RepositoryAccess> orgRepos = repositories.get(organization);
             return orgRepos != null && orgRepos.containsKey(repository);
         }
     }
 
-    private static class RepositoryAccess {
+    /**
+     * A snapshot of the parts of a user's profile that are written out
+     *
+     * @param name    the user's name, or {@code null} if they haven't set one
+     * @param htmlUrl the URL of the user's GitHub page
+     */
+    record Profile(String login, String name, String htmlUrl) {
+        String displayName() {
+            return name == null || name.isEmpty() ? login : name;
+        }
+    }
+
+    static class RepositoryAccess {
         private final String repository;
         private final boolean archived;
-        private boolean owner;
-        private boolean collaborator;
+        private volatile boolean owner;
+        private volatile boolean collaborator;
         private Set<String> teams;
 
         private RepositoryAccess(String repository, boolean archived) {
@@ -295,14 +1199,14 @@ public class GitOrganizationWriters implements Runnable {
             this.archived = archived;
         }
 
-        private void addTeamAccess(String team) {
+        private synchronized void addTeamAccess(String team) {
             if (teams == null) {
                 teams = new TreeSet<>();
             }
             teams.add(team);
         }
 
-        private String getNameSlug() {
+        String getNameSlug() {
             return repository
                     + (archived ? " (archived)" : "");
         }
@@ -315,6 +1219,300 @@ public class GitOrganizationWriters implements Runnable {
                     + (teams != null ? "teams=" + teams.toString() : "");
         }
 
+        private synchronized AccessSnapshot snapshot() {
+            return new AccessSnapshot(archived, owner, collaborator, teams == null ? new TreeSet<>() : new TreeSet<>(teams));
+        }
+
+    }
+
+    /**
+     * What an audit found, kept so the next audit can report what changed and skip repositories whose listings
+     * haven't changed
+     *
+     * @param created       when the audit ran
+     * @param organizations the organizations audited
+     * @param writers       each writer's profile and access, by login
+     * @param inputs        what each repository's listings granted, by {@code organization/repository}; repositories
+     *                      whose access couldn't be fully determined are left out, so they are checked again
+     */
+    private record Snapshot(int version, String created, List<String> organizations,
+                            Map<String, WriterSnapshot> writers, Map<String, RepositoryInputs> inputs) {
+
+        static Snapshot of(List<String> organizations, Collection<User> users, Map<String, RepositoryInputs> inputs) {
+            Map<String, WriterSnapshot> writers = new TreeMap<>();
+            for (User user : users) {
+                Map<String, Map<String, AccessSnapshot>> access = new TreeMap<>();
+                user.repositories.forEach((organization, repositories) -> repositories.forEach((repository, repositoryAccess) ->
+                        access.computeIfAbsent(organization, k -> new TreeMap<>()).put(repository, repositoryAccess.snapshot())));
+                Profile profile = user.profile();
+                writers.put(user.login(), new WriterSnapshot(profile.name(), profile.htmlUrl(), access));
+            }
+            return new Snapshot(SNAPSHOT_VERSION, Instant.now().toString(), organizations, writers, new TreeMap<>(inputs));
+        }
+
+        /**
+         * @return the snapshot in the file, or {@code null} if there is none
+         * @throws IOException if the file can't be read or is in another version of the format
+         */
+        static Snapshot read(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            Snapshot snapshot = SNAPSHOT_MAPPER.readValue(file.toFile(), Snapshot.class);
+            if (snapshot.version() != SNAPSHOT_VERSION) {
+                throw new IOException("unsupported snapshot version " + snapshot.version());
+            }
+            return snapshot;
+        }
+
+        /**
+         * @return an index of the access in the snapshot, with teams named {@code organization/team}
+         */
+        WriterAccessIndex index() {
+            WriterAccessIndex index = new WriterAccessIndex();
+            writers.forEach((login, writer) -> writer.access().forEach((organization, repositories) ->
+                    repositories.forEach((name, access) -> {
+                        String repository = organization + "/" + name;
+                        if (access.owner()) {
+                            index.addOwnerAccess(login, repository, access.archived());
+                        }
+                        if (access.collaborator()) {
+                            index.addCollaboratorAccess(login, repository, access.archived());
+                        }
+                        for (String team : access.teams()) {
+                            index.addTeamAccess(login, repository, access.archived(), organization + "/" + team);
+                        }
+                    })));
+            return index;
+        }
+
+        void write(Path file) throws IOException {
+            // Replace the previous snapshot in one step, so an interrupted write doesn't lose it
+            Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                SNAPSHOT_MAPPER.writeValue(temp.toFile(), this);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        /**
+         * @return each writer's access to the repositories of the given organizations, by login and then by
+         * {@code organization/repository}, leaving out the excluded repositories and writers left with no access
+         */
+        Map<String, Map<String, AccessSnapshot>> access(Set<String> organizations, Set<String> excluded) {
+            Map<String, Map<String, AccessSnapshot>> result = new TreeMap<>();
+            writers.forEach((login, writer) -> writer.access().forEach((organization, repositories) -> {
+                if (organizations.contains(organization)) {
+                    repositories.forEach((repository, access) -> {
+                        String key = organization + "/" + repository;
+                        if (!excluded.contains(key)) {
+                            result.computeIfAbsent(login, k -> new TreeMap<>()).put(key, access);
+                        }
+                    });
+                }
+            }));
+            return result;
+        }
+
+        /**
+         * @return the names of the teams with write access to each repository, by {@code organization/repository}
+         */
+        static Map<String, Set<String>> teams(Map<String, Map<String, AccessSnapshot>> access) {
+            Map<String, Set<String>> result = new HashMap<>();
+            access.values().forEach(repositories -> repositories.forEach((repository, repositoryAccess) ->
+                    result.computeIfAbsent(repository, k -> new TreeSet<>()).addAll(repositoryAccess.teams())));
+            return result;
+        }
+
+        /**
+         * @return the logins, in the order their writers are written in the full writer list
+         */
+        List<String> sorted(Collection<String> logins) {
+            return logins.stream()
+                    .sorted(Comparator.comparing((String login) -> writers.get(login).displayName(login))
+                            .thenComparing(login -> login))
+                    .toList();
+        }
+    }
+
+    /**
+     * @param name the writer's name, or {@code null} if they haven't set one
+     * @param url  the URL of the writer's GitHub page
+     */
+    private record WriterSnapshot(String name, String url, Map<String, Map<String, AccessSnapshot>> access) {
+
+        String displayName(String login) {
+            return name == null || name.isEmpty() ? login : name;
+        }
+
+        String describe(String login) {
+            return displayName(login) + " ([" + login + "](" + url + "))";
+        }
+    }
+
+    /**
+     * A writer's access to a repository, as in {@link RepositoryAccess}
+     */
+    private record AccessSnapshot(boolean archived, boolean owner, boolean collaborator, SortedSet<String> teams) {
+
+        AccessSnapshot {
+            // Empty sets aren't written out
+            teams = teams == null ? new TreeSet<>() : teams;
+        }
+
+        String reasons() {
+            List<String> reasons = new ArrayList<>();
+            if (owner) {
+                reasons.add("owner");
+            }
+            if (collaborator) {
+                reasons.add("collaborator");
+            }
+            if (!teams.isEmpty()) {
+                reasons.add("teams=" + teams);
+            }
+            return String.join(", ", reasons) + (archived ? " (archived)" : "");
+        }
+    }
+
+    /**
+     * What a repository's teams and collaborators listings granted
+     *
+     * @param teamsEtag           the teams listing's {@code ETag}, or {@code null} if it can't be validated
+     * @param teams               the teams with write access
+     * @param collaboratorsEtag   the collaborators listing's {@code ETag}, or {@code null} if it can't be validated
+     * @param collaboratorWriters logins of the collaborators with write access, directly or otherwise
+     */
+    private record RepositoryInputs(String teamsEtag, List<TeamRef> teams, String collaboratorsEtag,
+                                    Set<String> collaboratorWriters) {
+
+        RepositoryInputs {
+            teams = teams == null ? List.of() : teams;
+            collaboratorWriters = collaboratorWriters == null ? Set.of() : collaboratorWriters;
+        }
+    }
+
+    private record TeamRef(long id, String name) {
+    }
+
+    /**
+     * A unit of work of the audit
+     */
+    @FunctionalInterface
+    private interface AuditTask {
+        void run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs the audit's tasks, either inline on the calling thread (parallelism of 1) or on virtual threads. Each
+     * organization gets its own thread, while at most {@code parallelism} repository tasks are in flight at once.
+     * Once a task fails, tasks that haven't started yet are skipped and the failure is rethrown by
+     * {@link #awaitCompletion()}, as a sequential run would abort at the first failure.
+     */
+    private static class AuditWorkers implements AutoCloseable {
+        private final ExecutorService organizationExecutor;
+        private final ExecutorService repositoryExecutor;
+        private final Semaphore permits;
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        private AuditWorkers(int parallelism) {
+            if (parallelism > 1) {
+                this.organizationExecutor = Executors.newVirtualThreadPerTaskExecutor();
+                this.repositoryExecutor = Executors.newVirtualThreadPerTaskExecutor();
+                this.permits = new Semaphore(parallelism);
+            } else {
+                this.organizationExecutor = null;
+                this.repositoryExecutor = null;
+                this.permits = null;
+            }
+        }
+
+        private void submitOrganization(AuditTask task) {
+            if (organizationExecutor == null) {
+                run(task);
+            } else {
+                organizationExecutor.execute(() -> run(task));
+            }
+        }
+
+        private void submitRepository(AuditTask task) throws InterruptedException {
+            if (repositoryExecutor == null) {
+                run(task);
+            } else {
+                // Acquire before submitting so we don't create a virtual thread per repository up front
+                permits.acquire();
+                repositoryExecutor.execute(() -> {
+                    try {
+                        run(task);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        private void run(AuditTask task) {
+            if (failed()) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!failure.compareAndSet(null, e)) {
+                    failure.get().addSuppressed(e);
+                }
+            }
+        }
+
+        private boolean failed() {
+            return failure.get() != null;
+        }
+
+        private void awaitCompletion() throws IOException, InterruptedException {
+            close();
+            Exception e = failure.get();
+            if (e instanceof IOException ioe) {
+                throw ioe;
+            } else if (e instanceof InterruptedException ie) {
+                throw ie;
+            } else if (e != null) {
+                throw (RuntimeException) e;
+            }
+        }
+
+        @Override
+        public void close() {
+            // Organization tasks submit repository tasks, so they must all finish before the repository executor
+            // stops accepting work
+            if (organizationExecutor != null) {
+                organizationExecutor.close();
+                repositoryExecutor.close();
+            }
+        }
+    }
+
+    private enum TeamResolution {
+        REPOSITORIES,
+        TEAMS
+    }
+
+    private enum OutputFormat {
+        MARKDOWN("md", null),
+        JSONL("jsonl", RecordWriter.Format.JSONL),
+        CSV("csv", RecordWriter.Format.CSV);
+
+        private final String extension;
+        private final RecordWriter.Format recordFormat;
+
+        OutputFormat(String extension, RecordWriter.Format recordFormat) {
+            this.extension = extension;
+            this.recordFormat = recordFormat;
+        }
     }
 
     private enum DetailLevel {
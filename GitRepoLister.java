@@ -5,27 +5,43 @@
 //DEPS com.squareup.okhttp3:okhttp:4.12.0
 //DEPS info.picocli:picocli:4.7.6
 //DEPS org.kohsuke:github-api:1.327
+//SOURCES GitHubRequestScheduler.java
+//SOURCES GitHubRetryPolicy.java
+//SOURCES GitHubClientOptions.java
+//SOURCES GitHubMetadataStore.java
+//SOURCES GitHubApiMetrics.java
+//SOURCES RecordWriter.java
+//SOURCES GitHubRestListing.java
+//SOURCES GitHubCredentials.java
+//SOURCES GitHubGraphQL.java
+//SOURCES GitHubRepositoryListing.java
+//SOURCES RepositoryFilterOptions.java
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
-import okhttp3.Cache;
-import okhttp3.OkHttpClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.kohsuke.github.GHFileNotFoundException;
 import org.kohsuke.github.GHOrganization;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GitHub;
-import org.kohsuke.github.GitHubBuilder;
-import org.kohsuke.github.extras.okhttp3.OkHttpGitHubConnector;
+import org.kohsuke.github.HttpException;
 import picocli.CommandLine;
 
 @CommandLine.Command(name = "GitRepoLister", mixinStandardHelpOptions = true, version = "GitRepoLister 0.1", description = """
-        The GitRepoLister writes to a file the URLs of all unarchived repos in a list of GitHub organizations
+        The GitRepoLister writes to a file the URLs of the repos in a list of GitHub organizations; by default, all the unarchived ones
         """)
 public class GitRepoLister implements Runnable {
     public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitRepoLister.class.getPackageName());
@@ -34,10 +50,31 @@ public class GitRepoLister implements Runnable {
     private List<String> organizations;
 
     @CommandLine.Option(names = { "-o",
-            "--output-file" }, description = "Specify the GitHub organizations", defaultValue = "repositories.txt")
+            "--output-file" }, description = "Name of the output file; repositories.txt, .jsonl or .csv by default, " +
+            "depending on the --format")
     private String outputFile;
 
-    private final String cacheDir = System.getProperty("user.home") + "/.cache/git-repo-lister-cache";
+    @CommandLine.Option(names = { "-f",
+            "--format" }, description = "Format of the output file (text, jsonl, csv). text lists the repositories' " +
+            "URLs; jsonl and csv write a record per repository with its organization, name, URL and whether it is archived",
+            defaultValue = "text")
+    private String outputFormat;
+
+    @CommandLine.Option(names = { "-a",
+            "--include-archived" }, description = "Whether archived repositories should be included", defaultValue = "false")
+    private boolean includeArchived;
+
+    @CommandLine.Mixin
+    private RepositoryFilterOptions filterOptions;
+
+    @CommandLine.Mixin
+    private GitHubClientOptions clientOptions;
+
+    /** Largest page size GitHub allows when listing repositories */
+    private static final int MAX_PAGE_SIZE = 100;
+
+    /** Follows the last of an organization's repositories in its queue */
+    private static final Repository END = new Repository(null, null, null, false);
 
     public static void main(String[] args) {
         int exitCode = new CommandLine(new GitRepoLister()).execute(args);
@@ -48,70 +85,178 @@ public class GitRepoLister implements Runnable {
     @Override
     public void run() {
         try {
+            OutputFormat format = Enum.valueOf(OutputFormat.class, outputFormat.toUpperCase());
+            String output = outputFile != null ? outputFile : "repositories." + format.extension;
+            GitHubRepositoryListing.Filter filter = filterOptions.filter(includeArchived);
+
             // Connect to GitHub
-            GitHub github = setupGitHubClient();
+            GitHub github = clientOptions.setupGitHubClient();
+            Listings listing = createListings();
 
-            try (PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
+            // Organizations are listed concurrently, but written in the order they were given: the first one's
+            // repositories as they are listed, while those of the organizations waiting their turn are queued
+            List<Future<String>> logins = new ArrayList<>();
+            List<BlockingQueue<Repository>> queues = new ArrayList<>();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+                 PrintWriter writer = format == OutputFormat.TEXT ? new PrintWriter(new FileWriter(output)) : null;
+                 RecordWriter records = format == OutputFormat.TEXT ? null : RecordWriter.open(Path.of(output),
+                         format.recordFormat, "organization", "repository", "html_url", "archived")) {
                 for (String organization : organizations) {
-                    GHOrganization org = github.getOrganization(organization);
-                    if (org == null) {
-                        log.severe("Organization not found: " + organization);
+                    BlockingQueue<Repository> queue = new LinkedBlockingQueue<>();
+                    queues.add(queue);
+                    logins.add(executor.submit(() -> listRepositories(github, listing, organization, filter, queue)));
+                }
+                for (int i = 0; i < organizations.size(); i++) {
+                    int recorded = 0;
+                    for (Repository repo = queues.get(i).take(); repo != END; repo = queues.get(i).take()) {
+                        if (writer != null) {
+                            writer.println(repo.htmlUrl());
+                        } else {
+                            records.write(repo.organization(), repo.name(), repo.htmlUrl(), repo.archived());
+                        }
+                        recorded++;
+                    }
+
+                    String login;
+                    try {
+                        login = logins.get(i).get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException ioe) {
+                            throw ioe;
+                        }
+                        throw new IllegalStateException(e.getCause());
+                    }
+                    if (login == null) {
+                        log.severe("Organization not found: " + organizations.get(i));
                         continue;
                     }
-                    log.info("❇️ Preparing to list repositories for organization " + org.getLogin());
-
-                    List<GHRepository> allRepos = org.listRepositories().toList();
-                    log.info("Found " + allRepos.size() + " candidate repositories");
-                    List<GHRepository> filteredRepos = allRepos.stream()
-                            .filter(repo -> !repo.isArchived())
-                            .peek(repo -> writer.println(repo.getHtmlUrl()))
-                            .toList();
-                    log.info("Recorded " + filteredRepos.size() + " matching repositories");
+                    log.info("Recorded " + recorded + " matching repositories in organization " + login);
                 }
             }
-            log.info("✔️ Repository list written to " + outputFile);
+            log.info("✔️ Repository list written to " + output);
         } catch (IOException e) {
             log.severe("Error: " + e);
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.severe("Interrupted while waiting for organizations to be listed");
+        } finally {
+            clientOptions.report();
         }
     }
 
     /**
-     * Set up GitHub client with caching to reduce API calls
+     * @return the clients that list repositories directly, rather than via github-api, or {@code null} if the
+     * credentials they need aren't available
      */
-    public GitHub setupGitHubClient() throws IOException {
-
-        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder();
+    private Listings createListings() {
+        GitHubCredentials credentials;
+        try {
+            credentials = GitHubCredentials.fromPropertyFile();
+        } catch (IOException e) {
+            log.warning("⚠️ Each organization's repositories will be listed one REST page at a time and filtered " +
+                    "locally: " + e);
+            return null;
+        }
+        if (!filterOptions.graphQL()) {
+            return new Listings(GitHubRestListing.create(clientOptions.metadataConnector(), credentials), null);
+        }
+        try {
+            return new Listings(null, new GitHubRepositoryListing(GitHubGraphQL.create(clientOptions.connector(), credentials)));
+        } catch (IOException e) {
+            log.warning("⚠️ Repositories will be listed with the REST API: " + e);
+            return new Listings(GitHubRestListing.create(clientOptions.metadataConnector(), credentials), null);
+        }
+    }
 
-        if (ensureDirectoryExists(cacheDir)) {
-            log.finest("Cache directory: " + cacheDir);
-            Cache cache = new Cache(Path.of(cacheDir).toFile(), 10 * 1024 * 1024); // 10MB cache
-            clientBuilder.cache(cache);
-        } else {
-            log.finest("Cannot create cache directory at " + cacheDir + " -- will use a non-caching GitHub API connector");
+    /**
+     * Lists an organization's repositories that match the filter, adding each to the queue as soon as it is listed and
+     * then {@link #END}. With GraphQL, only the fields that are written are fetched, 100 repositories per page, and
+     * GitHub applies the filters it supports. With the REST API, the pages after the first are fetched concurrently,
+     * unless the credentials needed to fetch them directly aren't available, in which case github-api fetches them in
+     * turn; either way the filters are applied locally.
+     *
+     * @return the organization's login, with GitHub's capitalization, or {@code null} if the organization doesn't
+     * exist
+     */
+    private String listRepositories(GitHub github, Listings listing, String organization,
+                                    GitHubRepositoryListing.Filter filter, BlockingQueue<Repository> queue)
+            throws IOException, InterruptedException {
+        log.info("❇️ Preparing to list repositories for organization " + organization);
+        long start = System.nanoTime();
+        String login;
+        try {
+            GHOrganization org = github.getOrganization(organization);
+            login = org.getLogin();
+            if (listing != null && listing.graphQL() != null) {
+                Iterable<GitHubRepositoryListing.Repository> listed = listing.graphQL().list(login, filter,
+                        Set.of(GitHubRepositoryListing.Field.URL));
+                if (listed == null) {
+                    return null;
+                }
+                for (GitHubRepositoryListing.Repository repo : listed) {
+                    queue.add(new Repository(login, repo.name(), repo.url(), repo.archived()));
+                }
+            } else if (listing != null) {
+                listing.rest().fetchConcurrently("/orgs/" + login + "/repos", page -> {
+                    for (JsonNode node : page) {
+                        GitHubRepositoryListing.Repository repo = GitHubRepositoryListing.Repository.fromRest(node);
+                        if (filter.matches(repo)) {
+                            queue.add(new Repository(login, repo.name(), repo.url(), repo.archived()));
+                        }
+                    }
+                });
+            } else {
+                for (GHRepository ghRepo : org.listRepositories().withPageSize(MAX_PAGE_SIZE)) {
+                    GitHubRepositoryListing.Repository repo = GitHubRepositoryListing.Repository.fromGitHub(ghRepo,
+                            filter.topic() != null);
+                    if (filter.matches(repo)) {
+                        queue.add(new Repository(login, repo.name(), repo.url(), repo.archived()));
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (GHFileNotFoundException e) {
+            return null;
+        } catch (HttpException e) {
+            if (e.getResponseCode() == 404) {
+                return null;
+            }
+            throw e;
+        } finally {
+            queue.add(END);
         }
+        log.info("❇️ Listed the matching repositories of organization " + login + " in " +
+                (System.nanoTime() - start) / 1_000_000 + "ms");
+        return login;
+    }
 
-        log.finest("Creating GitHub API connector");
-        var connector = new OkHttpGitHubConnector(clientBuilder.build());
+    /**
+     * The client that lists repositories directly; one of them is {@code null}
+     */
+    private record Listings(GitHubRestListing rest, GitHubRepositoryListing graphQL) {
+    }
 
-        GitHub gh = GitHubBuilder.fromPropertyFile()
-                .withConnector(connector)
-                .build();
-        log.finest("Connected successfully");
-        return gh;
+    /**
+     * What is written about a repository; only this much of each listing is kept until it is written
+     *
+     * @param organization the organization's login, with GitHub's capitalization
+     */
+    private record Repository(String organization, String name, String htmlUrl, boolean archived) {
     }
 
-    private boolean ensureDirectoryExists(String dirPath) {
-        Path path = Path.of(dirPath);
-        if (!Files.exists(path)) {
-            try {
-                Files.createDirectories(path);
-                return true;
-            } catch (IOException e) {
-                log.warning("⚠️ Failed to create directory: " + dirPath + " -- request caching will not be available");
-                return false;
-            }
+    private enum OutputFormat {
+        TEXT("txt", null),
+        JSONL("jsonl", RecordWriter.Format.JSONL),
+        CSV("csv", RecordWriter.Format.CSV);
+
+        private final String extension;
+        private final RecordWriter.Format recordFormat;
+
+        OutputFormat(String extension, RecordWriter.Format recordFormat) {
+            this.extension = extension;
+            this.recordFormat = recordFormat;
         }
-        return true;
     }
 }
@@ -0,0 +1,564 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.15.0
+//DEPS com.fasterxml.jackson.dataformat:jackson-dataformat-yaml:2.15.0
+//DEPS com.squareup.okhttp3:okhttp:4.12.0
+//DEPS info.picocli:picocli:4.7.6
+//DEPS org.kohsuke:github-api:1.327
+//SOURCES GitFileAdder.java
+//SOURCES GitRepoLister.java
+//SOURCES GitOrganizationWriters.java
+//SOURCES GitHubRequestScheduler.java
+//SOURCES GitHubRetryPolicy.java
+//SOURCES GitHubClientOptions.java
+//SOURCES GitHubMetadataStore.java
+//SOURCES GitHubApiMetrics.java
+//SOURCES GitHubGraphQL.java
+//SOURCES GitHubCredentials.java
+//SOURCES GitHubRestListing.java
+//SOURCES GitHubRepositoryListing.java
+//SOURCES RepositoryFilterOptions.java
+//SOURCES WriterAccessIndex.java
+//SOURCES RecordWriter.java
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "GitScriptDaemon", mixinStandardHelpOptions = true, version = "GitScriptDaemon 0.1",
+        subcommands = { GitScriptDaemon.Serve.class, GitScriptDaemon.Submit.class }, description = """
+        The GitScriptDaemon runs GitFileAdder, GitRepoLister and GitOrganizationWriters jobs in one long-running
+        process, which keeps its GitHub connections, HTTP caches and organization metadata warm between them
+        """)
+public class GitScriptDaemon implements Runnable {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(GitScriptDaemon.class.getPackageName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** The scripts a job can run, by name */
+    private static final Map<String, Supplier<Object>> SCRIPTS = Map.of(
+            "GitFileAdder", GitFileAdder::new,
+            "GitRepoLister", GitRepoLister::new,
+            "GitOrganizationWriters", GitOrganizationWriters::new);
+
+    /** Exit code of a job the daemon refused to run */
+    private static final int REFUSED = 2;
+
+    /**
+     * The job whose output a thread's logging and console output goes to; threads a job starts inherit it. Shared
+     * threads that happen to be started during a job, such as the resident HTTP client's, keep it after the job has
+     * finished, so use {@link #currentJob()}.
+     */
+    private static final InheritableThreadLocal<JobOutput> JOB = new InheritableThreadLocal<>();
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    public static void main(String[] args) {
+        // Everything after the script's name belongs to the job, including its options
+        int exitCode = new CommandLine(new GitScriptDaemon()).setStopAtPositional(true).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public void run() {
+        throw new CommandLine.ParameterException(spec.commandLine(), "Specify serve or submit");
+    }
+
+    /**
+     * @return the running job whose output the current thread's output goes to, or {@code null} if it goes to the
+     * daemon's console
+     */
+    private static JobOutput currentJob() {
+        JobOutput job = JOB.get();
+        return job == null || job.closed ? null : job;
+    }
+
+    @CommandLine.Command(name = "serve", mixinStandardHelpOptions = true, description = """
+            Listens on a Unix domain socket for jobs and runs them concurrently. Each job gets its own retries and \
+            metrics from its options, but shares the daemon's connection pool, HTTP caches and in-memory organization \
+            metadata. Jobs using the same credentials also share the pacing of their requests; a job's own rate \
+            options can lower its rate but not raise it above the daemon's. Jobs run in the daemon's working directory, so relative paths in their arguments \
+            resolve as they would for the scripts run from it
+            """)
+    static class Serve implements Runnable {
+
+        @CommandLine.Option(names = {
+                "--socket" }, description = "Path of the Unix domain socket to listen on",
+                defaultValue = "${sys:user.home}/.cache/git-file-adder.sock")
+        private Path socket;
+
+        @CommandLine.Option(names = {
+                "--max-jobs" }, description = "Maximum number of jobs to run at once; later jobs wait for one to finish",
+                defaultValue = "8")
+        private int maxJobs;
+
+        @CommandLine.Option(names = {
+                "--connection-pool-size" }, description = "Maximum number of idle connections to keep open for reuse " +
+                "by all the jobs", defaultValue = "32")
+        private int connectionPoolSize;
+
+        @CommandLine.Option(names = {
+                "--metadata-entries" }, description = "Number of organization metadata store entries to keep in memory " +
+                "for all the jobs", defaultValue = "5000")
+        private int metadataEntries;
+
+        @CommandLine.Option(names = {
+                "--max-concurrent-requests" }, description = "Maximum number of GitHub API requests in flight at once " +
+                "for all the jobs using the same credentials",
+                defaultValue = "" + GitHubRequestScheduler.DEFAULT_MAX_CONCURRENT_REQUESTS)
+        private int maxConcurrentRequests;
+
+        @CommandLine.Option(names = {
+                "--reads-per-second" }, description = "Maximum rate of GitHub API requests while the rate limit " +
+                "budget is healthy, for all the jobs using the same credentials",
+                defaultValue = "" + GitHubRequestScheduler.DEFAULT_MAX_READS_PER_SECOND)
+        private double readsPerSecond;
+
+        @CommandLine.Option(names = {
+                "--writes-per-second" }, description = "Maximum rate of content-creating GitHub API requests for all " +
+                "the jobs using the same credentials",
+                defaultValue = "" + GitHubRequestScheduler.DEFAULT_WRITES_PER_SECOND)
+        private double writesPerSecond;
+
+        private final AtomicInteger jobIds = new AtomicInteger();
+
+        private Semaphore jobs;
+
+        @SuppressWarnings("CallToPrintStackTrace")
+        @Override
+        public void run() {
+            jobs = new Semaphore(maxJobs);
+            GitHubClientOptions.Resident resident = new GitHubClientOptions.Resident(connectionPoolSize, metadataEntries,
+                    maxConcurrentRequests, readsPerSecond, writesPerSecond);
+            GitHubClientOptions.keepResident(resident);
+            routeJobOutput();
+
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                if (!removeStaleSocket()) {
+                    return;
+                }
+                bind(server);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        Files.deleteIfExists(socket);
+                    } catch (IOException e) {
+                        log.fine("Failed to remove " + socket + ": " + e);
+                    }
+                    resident.close();
+                }));
+                log.info("❇️ Listening for jobs on " + socket + " in " + Path.of("").toAbsolutePath());
+
+                try (ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+                    while (true) {
+                        SocketChannel connection = server.accept();
+                        connections.submit(() -> serve(connection, resident));
+                    }
+                }
+            } catch (IOException e) {
+                log.severe("Error: " + e);
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * @return whether the socket's path is free to listen on, after removing what a daemon that didn't shut
+         * down cleanly left behind
+         */
+        private boolean removeStaleSocket() throws IOException {
+            if (!Files.exists(socket)) {
+                return true;
+            }
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            } catch (IOException e) {
+                Files.delete(socket);
+                return true;
+            }
+            log.severe("Another daemon is already listening on " + socket);
+            return false;
+        }
+
+        /**
+         * Binds the server to the socket. Anyone who can connect can run jobs with the daemon's GitHub credentials, so
+         * the socket is created in a directory only its owner can enter, restricted to its owner and only then moved
+         * into place; no one else can ever reach it.
+         */
+        private void bind(ServerSocketChannel server) throws IOException {
+            Path parent = socket.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path directory;
+            try {
+                directory = Files.createTempDirectory(parent, ".git-script-daemon",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } catch (UnsupportedOperationException e) {
+                log.warning("⚠️ Could not restrict access to " + socket + " to its owner");
+                server.bind(UnixDomainSocketAddress.of(socket));
+                return;
+            }
+            Path bound = directory.resolve(socket.getFileName());
+            try {
+                server.bind(UnixDomainSocketAddress.of(bound));
+                Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+                Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(bound);
+                Files.delete(directory);
+            }
+        }
+
+        /**
+         * Runs the job submitted on a connection, streaming its output back
+         */
+        private void serve(SocketChannel connection, GitHubClientOptions.Resident resident) {
+            int id = jobIds.incrementAndGet();
+            try (connection; JobOutput output = new JobOutput(Channels.newOutputStream(connection))) {
+                JobRequest request;
+                try {
+                    String line = new BufferedReader(new InputStreamReader(Channels.newInputStream(connection),
+                            StandardCharsets.UTF_8)).readLine();
+                    request = line == null ? null : MAPPER.readValue(line, JobRequest.class);
+                } catch (IOException e) {
+                    output.refuse("Invalid job request: " + e.getMessage());
+                    return;
+                }
+                if (request == null) {
+                    return;
+                }
+                Supplier<Object> script = SCRIPTS.get(request.script());
+                if (script == null) {
+                    output.refuse("Unknown script " + request.script() + "; choose one of " + SCRIPTS.keySet());
+                    return;
+                }
+                Path directory = Path.of("").toAbsolutePath();
+                if (request.directory() != null && !directory.equals(Path.of(request.directory()).toAbsolutePath())) {
+                    output.refuse("Jobs run in the daemon's working directory, " + directory + ", not " +
+                            request.directory() + "; submit from there or start a daemon in " + request.directory());
+                    return;
+                }
+                List<String> arguments = request.arguments() == null ? List.of() : request.arguments();
+
+                if (!jobs.tryAcquire()) {
+                    output.err("Waiting for one of the " + maxJobs + " running jobs to finish\n");
+                    jobs.acquire();
+                }
+                long start = System.nanoTime();
+                int exitCode;
+                try {
+                    log.info("❇️ Job " + id + " started: " + request.script() + " " + String.join(" ", arguments));
+                    JOB.set(output);
+                    try {
+                        CommandLine command = new CommandLine(script.get())
+                                .setOut(new PrintWriter(new OutputStreamWriter(output.stream("out"), StandardCharsets.UTF_8), true))
+                                .setErr(new PrintWriter(new OutputStreamWriter(output.stream("err"), StandardCharsets.UTF_8), true));
+                        exitCode = command.execute(arguments.toArray(String[]::new));
+                    } finally {
+                        JOB.remove();
+                    }
+                } finally {
+                    jobs.release();
+                }
+                log.info("✔️ Job " + id + " finished with exit code " + exitCode + " in " +
+                        (System.nanoTime() - start) / 1_000_000 + "ms; " + resident.idleConnections() +
+                        " idle connections and " + resident.metadataEntries() + " metadata entries kept warm");
+                output.exit(exitCode);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warning("⚠️ Job " + id + " was interrupted");
+            } catch (IOException e) {
+                log.warning("⚠️ Lost the connection for job " + id + ": " + e);
+            }
+        }
+
+        /**
+         * Sends the log records and console output of each job's threads to the job's client. Anything else, such as
+         * the daemon's own logging, still goes to the daemon's console.
+         */
+        private static void routeJobOutput() {
+            Logger root = Logger.getLogger("");
+            for (Handler handler : root.getHandlers()) {
+                handler.setFilter(record -> currentJob() == null);
+            }
+            root.addHandler(new JobLogHandler());
+            System.setOut(new PrintStream(new RoutedStream(System.out, "out"), true, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(new RoutedStream(System.err, "err"), true, StandardCharsets.UTF_8));
+        }
+    }
+
+    @CommandLine.Command(name = "submit", mixinStandardHelpOptions = true, description = """
+            Submits a job to a running daemon, streams its console output and logging back and exits with its exit code
+            """)
+    static class Submit implements Callable<Integer> {
+
+        @CommandLine.Option(names = {
+                "--socket" }, description = "Path of the Unix domain socket the daemon listens on",
+                defaultValue = "${sys:user.home}/.cache/git-file-adder.sock")
+        private Path socket;
+
+        @CommandLine.Parameters(index = "0", description = "The script to run: GitFileAdder, GitRepoLister or GitOrganizationWriters")
+        private String script;
+
+        @CommandLine.Parameters(index = "1..*", description = "The script's arguments, as they would be given to it")
+        private List<String> arguments;
+
+        @Override
+        public Integer call() throws IOException {
+            try (SocketChannel connection = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                OutputStream out = Channels.newOutputStream(connection);
+                out.write(MAPPER.writeValueAsBytes(new JobRequest(script, Path.of("").toAbsolutePath().toString(),
+                        arguments == null ? List.of() : arguments)));
+                out.write('\n');
+                out.flush();
+
+                BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(connection),
+                        StandardCharsets.UTF_8));
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    JsonNode message = MAPPER.readTree(line);
+                    if (message.has("exit")) {
+                        return message.path("exit").asInt();
+                    }
+                    PrintStream stream = "out".equals(message.path("stream").asText()) ? System.out : System.err;
+                    stream.print(message.path("text").asText());
+                    stream.flush();
+                }
+            }
+            log.severe("The daemon closed the connection before the job finished");
+            return 1;
+        }
+    }
+
+    /**
+     * A job submitted to the daemon
+     *
+     * @param script    name of the script to run
+     * @param directory working directory of the client, which must be the daemon's
+     * @param arguments the script's arguments
+     */
+    record JobRequest(String script, String directory, List<String> arguments) {
+    }
+
+    /**
+     * Streams a job's output to its client as JSON Lines: {@code {"stream": "out" or "err", "text": ...}} for
+     * console output and logging, then {@code {"exit": code}} when it finishes. Output from the job's threads is
+     * interleaved a line at a time. If the client goes away, the job carries on and its output is discarded.
+     */
+    private static class JobOutput implements AutoCloseable {
+        private final OutputStream connection;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, LineBuffer> buffers = Map.of(
+                "out", new LineBuffer(), "err", new LineBuffer());
+        private boolean disconnected;
+        private volatile boolean closed;
+
+        JobOutput(OutputStream connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return a stream whose lines are sent as the given stream's text
+         */
+        OutputStream stream(String stream) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    JobOutput.this.write(stream, b, off, len);
+                }
+
+                @Override
+                public void flush() {
+                    JobOutput.this.flush(stream);
+                }
+            };
+        }
+
+        void err(String text) {
+            send(MAPPER.createObjectNode().put("stream", "err").put("text", text));
+        }
+
+        void refuse(String reason) {
+            log.warning("⚠️ Refused a job: " + reason);
+            err(reason + "\n");
+            exit(REFUSED);
+        }
+
+        void exit(int exitCode) {
+            flush("out");
+            flush("err");
+            send(MAPPER.createObjectNode().put("exit", exitCode));
+        }
+
+        private void write(String stream, byte[] b, int off, int len) {
+            lock.lock();
+            try {
+                for (String line : buffers.get(stream).append(b, off, len)) {
+                    send(MAPPER.createObjectNode().put("stream", stream).put("text", line));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void flush(String stream) {
+            lock.lock();
+            try {
+                String rest = buffers.get(stream).drain();
+                if (!rest.isEmpty()) {
+                    send(MAPPER.createObjectNode().put("stream", stream).put("text", rest));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void send(JsonNode message) {
+            lock.lock();
+            try {
+                if (disconnected) {
+                    return;
+                }
+                connection.write(MAPPER.writeValueAsBytes(message));
+                connection.write('\n');
+                connection.flush();
+            } catch (IOException e) {
+                disconnected = true;
+                log.fine("The client went away: " + e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            flush("out");
+            flush("err");
+            closed = true;
+        }
+    }
+
+    /**
+     * Replaces {@link System#out} or {@link System#err}, sending what a job's threads write to the job's client and
+     * everything else to the stream it replaced
+     */
+    private static class RoutedStream extends OutputStream {
+        private final PrintStream console;
+        private final String stream;
+
+        RoutedStream(PrintStream console, String stream) {
+            this.console = console;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            JobOutput job = currentJob();
+            if (job == null) {
+                console.write(b, off, len);
+            } else {
+                job.write(stream, b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            JobOutput job = currentJob();
+            if (job == null) {
+                console.flush();
+            } else {
+                job.flush(stream);
+            }
+        }
+    }
+
+    /**
+     * Collects bytes until they make up whole lines, so a line is never split between messages
+     */
+    private static class LineBuffer {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        /**
+         * @return the lines completed by the bytes, each with its line terminator
+         */
+        List<String> append(byte[] b, int off, int len) {
+            List<String> lines = new ArrayList<>();
+            for (int i = off; i < off + len; i++) {
+                pending.write(b[i]);
+                if (b[i] == '\n') {
+                    lines.add(drain());
+                }
+            }
+            return lines;
+        }
+
+        String drain() {
+            String text = pending.toString(StandardCharsets.UTF_8);
+            pending.reset();
+            return text;
+        }
+    }
+
+    /**
+     * Sends the log records of a job's threads to the job's client, formatted as the console would format them
+     */
+    private static class JobLogHandler extends Handler {
+        private final SimpleFormatter formatter = new SimpleFormatter();
+
+        @Override
+        public void publish(LogRecord record) {
+            JobOutput job = currentJob();
+            if (job != null && isLoggable(record)) {
+                job.err(formatter.format(record));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
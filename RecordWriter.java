@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Streams records to a file as JSON Lines or CSV as they are found, so output starts straight away and memory use
+ * doesn't grow with the number of records. Records are encoded into a buffer that is written to a
+ * {@link FileChannel} whenever it fills up. Records may be written from several threads at once.
+ */
+public class RecordWriter implements AutoCloseable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Format format;
+    private final List<String> columns;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // Guards the buffer; held while a full buffer is written out, so records never interleave
+    private final ReentrantLock lock = new ReentrantLock();
+    private long records;
+
+    private RecordWriter(FileChannel channel, Format format, List<String> columns) {
+        this.channel = channel;
+        this.format = format;
+        this.columns = columns;
+    }
+
+    /**
+     * Creates or truncates the file. A CSV file starts with a header line naming the columns.
+     *
+     * @param columns the names of the records' fields, in the order their values are passed to {@link #write}
+     */
+    public static RecordWriter open(Path file, Format format, String... columns) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        RecordWriter writer = new RecordWriter(channel, format, List.of(columns));
+        if (format == Format.CSV) {
+            writer.put(csv((Object[]) columns));
+        }
+        return writer;
+    }
+
+    /**
+     * Writes a record
+     *
+     * @param values the record's values, one per column; strings, numbers, booleans or {@code null}
+     */
+    public void write(Object... values) throws IOException {
+        if (values.length != columns.size()) {
+            throw new IllegalArgumentException("Expected " + columns.size() + " values but got " + values.length);
+        }
+        byte[] line = format == Format.CSV ? csv(values) : json(values);
+        lock.lock();
+        try {
+            put(line);
+            records++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of records written
+     */
+    public long records() {
+        lock.lock();
+        try {
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void put(byte[] line) throws IOException {
+        lock.lock();
+        try {
+            if (line.length > buffer.remaining()) {
+                flush();
+                if (line.length > buffer.capacity()) {
+                    ByteBuffer wrapped = ByteBuffer.wrap(line);
+                    while (wrapped.hasRemaining()) {
+                        channel.write(wrapped);
+                    }
+                    return;
+                }
+            }
+            buffer.put(line);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] json(Object[] values) throws IOException {
+        ObjectNode node = MAPPER.createObjectNode();
+        for (int i = 0; i < values.length; i++) {
+            node.putPOJO(columns.get(i), values[i]);
+        }
+        return (MAPPER.writeValueAsString(node) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] csv(Object[] values) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            String value = values[i] == null ? "" : values[i].toString();
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                // Quoted as RFC 4180 describes
+                line.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+        return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public enum Format {
+        JSONL,
+        CSV
+    }
+}
@@ -0,0 +1,57 @@
+import picocli.CommandLine;
+
+/**
+ * Options that choose which of an organization's repositories a script lists, and how it lists them, shared by the
+ * scripts that list repositories as a picocli mixin.
+ */
+public class RepositoryFilterOptions {
+
+    @CommandLine.Option(names = {
+            "--listing" }, description = "How to list the organization's repositories (graphql, rest). graphql fetches " +
+            "only the fields that are used and has GitHub apply the filters where it can; rest fetches the full REST " +
+            "representation of each repository and filters it locally. graphql needs the credentials in ~/.github; " +
+            "without them rest is used", defaultValue = "graphql")
+    private String listing;
+
+    @CommandLine.Option(names = {
+            "--forks" }, description = "Whether to include forks", negatable = true, defaultValue = "true",
+            fallbackValue = "true")
+    private boolean forks;
+
+    @CommandLine.Option(names = {
+            "--visibility" }, description = "Only include repositories with this visibility (public, private, internal)")
+    private String visibility;
+
+    @CommandLine.Option(names = {
+            "--pushed-since" }, description = "Only include repositories pushed to since this date (e.g. 2024-01-31) " +
+            "or time (e.g. 2024-01-31T12:00:00Z). With graphql listing, repositories are listed most recently pushed first")
+    private String pushedSince;
+
+    @CommandLine.Option(names = {
+            "--topic" }, description = "Only include repositories with this topic")
+    private String topic;
+
+    /**
+     * @return whether repositories should be listed with GraphQL
+     * @throws IllegalArgumentException if {@code --listing} isn't recognized
+     */
+    public boolean graphQL() {
+        return Enum.valueOf(Listing.class, listing.toUpperCase()) == Listing.GRAPHQL;
+    }
+
+    /**
+     * @param includeArchived whether archived repositories should be listed
+     * @throws IllegalArgumentException if {@code --visibility} or {@code --pushed-since} isn't recognized
+     */
+    public GitHubRepositoryListing.Filter filter(boolean includeArchived) {
+        return new GitHubRepositoryListing.Filter(includeArchived, forks,
+                visibility == null ? null : Enum.valueOf(GitHubRepositoryListing.Visibility.class, visibility.toUpperCase()),
+                pushedSince == null ? null : GitHubRepositoryListing.Filter.parseTime(pushedSince),
+                topic);
+    }
+
+    private enum Listing {
+        GRAPHQL,
+        REST
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact index of who can write to which repository, for answering queries about an audit without walking its
+ * per-writer maps. Users, repositories and teams are interned to dense integer ids, and each kind of access is kept
+ * as bitsets over those ids, in both directions, so a query only reads the bitsets of the user, repository or team
+ * asked about.
+ * <p>
+ * Repositories are named {@code organization/repository} and teams {@code organization/team}. A team's members are
+ * taken to have the team's access to each of its repositories, as GitOrganizationWriters records it.
+ */
+public class WriterAccessIndex {
+
+    private static final BitSet NONE = new BitSet();
+
+    private final Interner users = new Interner();
+    private final Interner repositories = new Interner();
+    private final Interner teams = new Interner();
+
+    private final BitSet archived = new BitSet();
+
+    /** Repositories each user owns, by user id */
+    private final List<BitSet> ownedRepositories = new ArrayList<>();
+    /** Repositories each user is a writing collaborator on, by user id */
+    private final List<BitSet> collaboratorRepositories = new ArrayList<>();
+    /** Teams each user has write access through, by user id */
+    private final List<BitSet> userTeams = new ArrayList<>();
+
+    /** Owners of each repository, by repository id */
+    private final List<BitSet> repositoryOwners = new ArrayList<>();
+    /** Writing collaborators of each repository, by repository id */
+    private final List<BitSet> repositoryCollaborators = new ArrayList<>();
+    /** Teams with write access to each repository, by repository id */
+    private final List<BitSet> repositoryTeams = new ArrayList<>();
+
+    /** Repositories each team grants write access to, by team id */
+    private final List<BitSet> teamRepositories = new ArrayList<>();
+    /** Members each team grants write access to, by team id */
+    private final List<BitSet> teamMembers = new ArrayList<>();
+
+    public void addOwnerAccess(String user, String repository, boolean archived) {
+        int u = users.id(user);
+        int r = repository(repository, archived);
+        bits(ownedRepositories, u).set(r);
+        bits(repositoryOwners, r).set(u);
+    }
+
+    public void addCollaboratorAccess(String user, String repository, boolean archived) {
+        int u = users.id(user);
+        int r = repository(repository, archived);
+        bits(collaboratorRepositories, u).set(r);
+        bits(repositoryCollaborators, r).set(u);
+    }
+
+    public void addTeamAccess(String user, String repository, boolean archived, String team) {
+        int u = users.id(user);
+        int r = repository(repository, archived);
+        int t = teams.id(team);
+        bits(userTeams, u).set(t);
+        bits(repositoryTeams, r).set(t);
+        bits(teamRepositories, t).set(r);
+        bits(teamMembers, t).set(u);
+    }
+
+    /**
+     * @return everyone who can write to the repository, ordered by login, or {@code null} if it isn't indexed
+     */
+    public List<Grant> writers(String repository) {
+        Integer r = repositories.find(repository);
+        if (r == null) {
+            return null;
+        }
+        BitSet writers = copy(repositoryOwners, r);
+        writers.or(get(repositoryCollaborators, r));
+        BitSet teamIds = get(repositoryTeams, r);
+        for (int t = teamIds.nextSetBit(0); t >= 0; t = teamIds.nextSetBit(t + 1)) {
+            writers.or(teamMembers.get(t));
+        }
+        List<Grant> result = new ArrayList<>();
+        for (int u = writers.nextSetBit(0); u >= 0; u = writers.nextSetBit(u + 1)) {
+            result.add(grant(users.name(u), u, r));
+        }
+        result.sort((a, b) -> a.name().compareTo(b.name()));
+        return result;
+    }
+
+    /**
+     * @return the repositories the user can write to, ordered by name, or {@code null} if they aren't indexed
+     */
+    public List<Grant> repositories(String user) {
+        Integer u = users.find(user);
+        if (u == null) {
+            return null;
+        }
+        BitSet writable = copy(ownedRepositories, u);
+        writable.or(get(collaboratorRepositories, u));
+        BitSet teamIds = get(userTeams, u);
+        for (int t = teamIds.nextSetBit(0); t >= 0; t = teamIds.nextSetBit(t + 1)) {
+            writable.or(teamRepositories.get(t));
+        }
+        List<Grant> result = new ArrayList<>();
+        for (int r = writable.nextSetBit(0); r >= 0; r = writable.nextSetBit(r + 1)) {
+            result.add(grant(repositories.name(r), u, r));
+        }
+        result.sort((a, b) -> a.name().compareTo(b.name()));
+        return result;
+    }
+
+    /**
+     * @return what the team grants, or {@code null} if it isn't indexed
+     */
+    public TeamGrant team(String team) {
+        Integer t = teams.find(team);
+        if (t == null) {
+            return null;
+        }
+        return new TeamGrant(repositories.names(teamRepositories.get(t)), users.names(teamMembers.get(t)));
+    }
+
+    public int userCount() {
+        return users.size();
+    }
+
+    public int repositoryCount() {
+        return repositories.size();
+    }
+
+    public int teamCount() {
+        return teams.size();
+    }
+
+    private Grant grant(String name, int u, int r) {
+        List<String> through = new ArrayList<>();
+        BitSet teamIds = copy(userTeams, u);
+        teamIds.and(get(repositoryTeams, r));
+        for (int t = teamIds.nextSetBit(0); t >= 0; t = teamIds.nextSetBit(t + 1)) {
+            through.add(teams.name(t));
+        }
+        through.sort(null);
+        return new Grant(name, archived.get(r), get(ownedRepositories, u).get(r),
+                get(collaboratorRepositories, u).get(r), through);
+    }
+
+    private int repository(String repository, boolean isArchived) {
+        int r = repositories.id(repository);
+        if (isArchived) {
+            archived.set(r);
+        }
+        return r;
+    }
+
+    /**
+     * @return the bitset for the id, creating it (and any missing before it) if needed
+     */
+    private static BitSet bits(List<BitSet> list, int id) {
+        while (list.size() <= id) {
+            list.add(new BitSet());
+        }
+        return list.get(id);
+    }
+
+    /**
+     * @return the bitset for the id, or an empty one if nothing was recorded for it; it must not be modified
+     */
+    private static BitSet get(List<BitSet> list, int id) {
+        return id < list.size() ? list.get(id) : NONE;
+    }
+
+    /**
+     * @return a copy of the bitset for the id, which can be modified
+     */
+    private static BitSet copy(List<BitSet> list, int id) {
+        return (BitSet) get(list, id).clone();
+    }
+
+    /**
+     * A user's write access to a repository
+     *
+     * @param name  the user's login or the repository's name, whichever the query didn't ask about
+     * @param teams the teams the access comes through, if any
+     */
+    public record Grant(String name, boolean archived, boolean owner, boolean collaborator, List<String> teams) {
+
+        /**
+         * @return why the user has access, in the form GitOrganizationWriters writes it
+         */
+        public String reasons() {
+            List<String> reasons = new ArrayList<>();
+            if (owner) {
+                reasons.add("owner");
+            }
+            if (collaborator) {
+                reasons.add("collaborator");
+            }
+            if (!teams.isEmpty()) {
+                reasons.add("teams=" + teams);
+            }
+            return String.join(", ", reasons) + (archived ? " (archived)" : "");
+        }
+    }
+
+    /**
+     * @param repositories the repositories the team grants write access to, ordered by name
+     * @param members      the members the team grants it to, ordered by login
+     */
+    public record TeamGrant(List<String> repositories, List<String> members) {
+    }
+
+    /**
+     * Assigns dense ids to names in the order they are first seen
+     */
+    private static class Interner {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        int id(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+            }
+            return id;
+        }
+
+        Integer find(String name) {
+            return ids.get(name);
+        }
+
+        String name(int id) {
+            return names.get(id);
+        }
+
+        List<String> names(BitSet bits) {
+            List<String> result = new ArrayList<>(bits.cardinality());
+            for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+                result.add(names.get(id));
+            }
+            result.sort(null);
+            return result;
+        }
+
+        int size() {
+            return names.size();
+        }
+    }
+}
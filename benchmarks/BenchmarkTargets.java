@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import okhttp3.OkHttpClient;
+import org.kohsuke.github.GHUser;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.GitHubBuilder;
+import org.kohsuke.github.extras.okhttp3.OkHttpGitHubConnector;
+import picocli.CommandLine;
+
+/**
+ * The operations measured by {@code benchmarks.MicroBenchmarks}, prepared with their inputs.
+ * <p>
+ * JMH doesn't allow benchmarks in the default package, and classes in a named package can't refer to the scripts,
+ * which are in the default package. So this class, which is in the default package, sets up each operation and
+ * hands it to the benchmarks as a {@link Supplier}. The benchmarks look it up reflectively once per trial.
+ */
+public final class BenchmarkTargets {
+
+    private BenchmarkTargets() {
+    }
+
+    /**
+     * Sorting the writers, as GitOrganizationWriters does before writing its report
+     *
+     * @param users number of users to sort; their profiles are fetched from {@link MockGitHub} up front, as
+     *              GitOrganizationWriters prefetches them before sorting
+     */
+    public static Supplier<Object> sortWriters(int users) throws IOException {
+        List<GitOrganizationWriters.User> shuffled = new ArrayList<>();
+        for (GHUser user : fetchUsers(users, true)) {
+            GitOrganizationWriters.User writer = new GitOrganizationWriters.User(user);
+            writer.fetchProfile();
+            shuffled.add(writer);
+        }
+        Collections.shuffle(shuffled, new Random(42));
+        return () -> new TreeSet<>(shuffled);
+    }
+
+    /**
+     * Aggregating repository access the way GitOrganizationWriters' {@code processOrganization} does: three owners,
+     * two teams and three collaborators per repository
+     */
+    public static Supplier<Object> aggregateRepositoryAccess(int repositories) throws IOException {
+        List<GHUser> people = fetchUsers(Math.max(10, repositories / 5), false);
+        String organization = "synthetic";
+        return () -> {
+            Map<String, GitOrganizationWriters.User> writers = new HashMap<>();
+            List<GitOrganizationWriters.User> owners = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                GHUser owner = people.get(i);
+                owners.add(writers.computeIfAbsent(owner.getLogin(), k -> new GitOrganizationWriters.User(owner)));
+            }
+            for (int repo = 1; repo <= repositories; repo++) {
+                String repository = String.format("repo-%05d", repo);
+                boolean archived = repo % 10 == 0;
+                for (GitOrganizationWriters.User owner : owners) {
+                    owner.addOwnerAccess(organization, repository, archived);
+                }
+                for (int member = 0; member < 5; member++) {
+                    GHUser user = people.get((repo * 5 + member) % people.size());
+                    writers.computeIfAbsent(user.getLogin(), k -> new GitOrganizationWriters.User(user))
+                            .addTeamAccess(organization, repository, archived, "team-" + (repo % 20));
+                }
+                for (int collaborator = 0; collaborator < 3; collaborator++) {
+                    GHUser user = people.get((repo * 3 + collaborator * 31) % people.size());
+                    GitOrganizationWriters.User writer = writers.get(user.getLogin());
+                    if (writer == null || !writer.hasRepositoryAccess(organization, repository)) {
+                        writers.computeIfAbsent(user.getLogin(), k -> new GitOrganizationWriters.User(user))
+                                .addCollaboratorAccess(organization, repository, archived);
+                    }
+                }
+            }
+            return writers;
+        };
+    }
+
+    /**
+     * Answering GitOrganizationWriters' {@code --query} options from its access index, built with the access
+     * {@link #aggregateRepositoryAccess} aggregates. Each call asks who can write to a repository, which repositories a
+     * user can write to and what a team grants, moving on to the next repository, user and team each time.
+     */
+    public static Supplier<Object> queryAccessIndex(int repositories) {
+        int users = Math.max(10, repositories / 5);
+        String organization = "synthetic";
+        WriterAccessIndex index = new WriterAccessIndex();
+        for (int repo = 1; repo <= repositories; repo++) {
+            String repository = organization + "/" + String.format("repo-%05d", repo);
+            boolean archived = repo % 10 == 0;
+            for (int owner = 0; owner < 3; owner++) {
+                index.addOwnerAccess(String.format("user-%05d", owner + 1), repository, archived);
+            }
+            for (int member = 0; member < 5; member++) {
+                index.addTeamAccess(String.format("user-%05d", (repo * 5 + member) % users + 1), repository, archived,
+                        organization + "/team-" + (repo % 20));
+            }
+            for (int collaborator = 0; collaborator < 3; collaborator++) {
+                index.addCollaboratorAccess(String.format("user-%05d", (repo * 3 + collaborator * 31) % users + 1),
+                        repository, archived);
+            }
+        }
+        int[] next = { 0 };
+        return () -> {
+            int i = next[0]++;
+            return List.of(
+                    index.writers(organization + "/" + String.format("repo-%05d", i % repositories + 1)),
+                    index.repositories(String.format("user-%05d", i % users + 1)),
+                    index.team(organization + "/team-" + (i % Math.min(20, repositories))));
+        };
+    }
+
+    /**
+     * Building GitFileAdder's content map for the files in a directory
+     */
+    public static Supplier<Object> buildContentMap(Path dir) {
+        GitFileAdder adder = new GitFileAdder();
+        new CommandLine(adder).parseArgs("-o", "benchmark", dir.toString());
+        return adder::createContentMap;
+    }
+
+    private static List<GHUser> fetchUsers(int count, boolean populate) throws IOException {
+        try (MockGitHub server = new MockGitHub(List.of(count * 5), Duration.ZERO, Long.MAX_VALUE, Duration.ofHours(1))) {
+            server.start(0);
+            GitHub github = new GitHubBuilder().withEndpoint(server.url()).withOAuthToken("benchmark")
+                    .withConnector(new OkHttpGitHubConnector(new OkHttpClient()))
+                    .build();
+            List<GHUser> users = new ArrayList<>();
+            for (int i = 1; i <= count; i++) {
+                GHUser user = github.getUser(String.format("user-%05d", i));
+                if (populate) {
+                    // Make sure the profile is complete, so comparing users never fetches it
+                    user.getName();
+                }
+                users.add(user);
+            }
+            return users;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.15.0
+//DEPS com.fasterxml.jackson.dataformat:jackson-dataformat-yaml:2.15.0
+//DEPS com.squareup.okhttp3:okhttp:4.12.0
+//DEPS com.squareup.okhttp3:mockwebserver:4.12.0
+//DEPS info.picocli:picocli:4.7.6
+//DEPS org.kohsuke:github-api:1.327
+//SOURCES MockGitHub.java
+//SOURCES ../GitFileAdder.java
+//SOURCES ../GitRepoLister.java
+//SOURCES ../GitOrganizationWriters.java
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import picocli.CommandLine;
+
+/**
+ * Runs each script against {@link MockGitHub} for organizations of each size, and reports how long each run took.
+ * <p>
+ * Every run starts with an empty {@code user.home}, so the HTTP cache, the metadata store and the GitFileAdder
+ * journal are cold and runs are comparable with each other.
+ */
+@CommandLine.Command(name = "EndToEndBenchmark", mixinStandardHelpOptions = true, version = "EndToEndBenchmark 0.1", description = """
+        The EndToEndBenchmark measures the throughput of the scripts against a mock GitHub serving synthetic organizations
+        """)
+public class EndToEndBenchmark implements Runnable {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(EndToEndBenchmark.class.getPackageName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    @CommandLine.Option(names = { "-s", "--sizes" }, description = "Number of repositories in each synthetic organization",
+            split = ",", defaultValue = "100,1000,10000")
+    private List<Integer> sizes;
+
+    @CommandLine.Option(names = { "--scripts" }, description = "Scripts to run (lister, writers, writers-teams, adder, rollback). " +
+            "writers-teams measures GitOrganizationWriters --team-resolution teams. " +
+            "rollback measures GitFileAdder --rollback of the PRs opened by an unmeasured GitFileAdder run",
+            split = ",", defaultValue = "lister,writers,writers-teams,adder,rollback")
+    private List<String> scripts;
+
+    @CommandLine.Option(names = { "-i", "--iterations" }, description = "Number of measured runs of each script for each size", defaultValue = "1")
+    private int iterations;
+
+    @CommandLine.Option(names = { "--warmup" }, description = "Number of unmeasured runs of each script against the smallest organization", defaultValue = "1")
+    private int warmup;
+
+    @CommandLine.Option(names = { "--latency" }, description = "Delay in milliseconds before each mock response", defaultValue = "20")
+    private long latencyMillis;
+
+    @CommandLine.Option(names = { "--rate-limit" }, description = "Requests the mock allows per rate limit window", defaultValue = "1000000")
+    private long rateLimit;
+
+    @CommandLine.Option(names = { "--rate-limit-window" }, description = "Length of the mock's rate limit window in seconds", defaultValue = "3600")
+    private long rateLimitWindowSeconds;
+
+    @CommandLine.Option(names = { "--failure-rate" }, description = "Fraction of requests the mock fails transiently, " +
+            "to measure the cost of retries", defaultValue = "0")
+    private double failureRate;
+
+    @CommandLine.Option(names = { "--reads-per-second" }, description = "Request rate passed to the scripts; the default is high so the " +
+            "scripts' own overhead is measured rather than their pacing", defaultValue = "10000")
+    private double readsPerSecond;
+
+    @CommandLine.Option(names = { "--writes-per-second" }, description = "Content-creating request rate passed to the scripts", defaultValue = "10000")
+    private double writesPerSecond;
+
+    @CommandLine.Option(names = { "-j", "--parallelism" }, description = "Parallelism passed to GitFileAdder and GitOrganizationWriters", defaultValue = "32")
+    private int parallelism;
+
+    @CommandLine.Option(names = { "-r", "--results" }, description = "File to write the results to as JSON")
+    private Path results;
+
+    @CommandLine.Option(names = { "-v", "--verbose" }, description = "Show the scripts' logging", defaultValue = "false")
+    private boolean verbose;
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new EndToEndBenchmark()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @SuppressWarnings("CallToPrintStackTrace")
+    @Override
+    public void run() {
+        if (!verbose) {
+            Logger.getLogger("").setLevel(Level.WARNING);
+        }
+        String originalHome = System.getProperty("user.home");
+        List<Map<String, Object>> measurements = new ArrayList<>();
+        try (MockGitHub github = new MockGitHub(sizes, Duration.ofMillis(latencyMillis), rateLimit,
+                Duration.ofSeconds(rateLimitWindowSeconds)).failureRate(failureRate)) {
+            github.start(0);
+            System.out.println("Mock GitHub at " + github.url() + " with " + latencyMillis + "ms latency");
+            System.out.printf("%-13s %8s %10s %10s %10s %12s%n", "script", "repos", "seconds", "repos/s", "requests", "requests/s");
+
+            int smallest = sizes.stream().mapToInt(Integer::intValue).min().orElseThrow();
+            for (String script : scripts) {
+                for (int i = 0; i < warmup; i++) {
+                    prepare(github, script, smallest);
+                    runScript(github, script, smallest);
+                }
+                for (int size : sizes) {
+                    for (int i = 0; i < iterations; i++) {
+                        prepare(github, script, size);
+                        github.resetCounts();
+                        long start = System.nanoTime();
+                        runScript(github, script, size);
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        long requests = github.requestCount();
+                        System.out.printf(Locale.ROOT, "%-13s %8d %10.2f %10.1f %10d %12.1f%n", script, size, seconds,
+                                size / seconds, requests, requests / seconds);
+
+                        Map<String, Object> measurement = new LinkedHashMap<>();
+                        measurement.put("script", script);
+                        measurement.put("repositories", size);
+                        measurement.put("latency_ms", latencyMillis);
+                        measurement.put("failure_rate", failureRate);
+                        measurement.put("seconds", seconds);
+                        measurement.put("repositories_per_second", size / seconds);
+                        measurement.put("requests", requests);
+                        measurement.put("requests_by_route", github.requestCounts());
+                        measurements.add(measurement);
+                    }
+                }
+            }
+            if (results != null) {
+                MAPPER.writeValue(results.toFile(), measurements);
+                System.out.println("Results written to " + results);
+            }
+        } catch (IOException e) {
+            log.severe("Error: " + e);
+            e.printStackTrace();
+        } finally {
+            System.setProperty("user.home", originalHome);
+        }
+    }
+
+    /**
+     * Resets the mock's refs and pull requests, and for a rollback opens the PRs to be rolled back
+     */
+    private void prepare(MockGitHub github, String script, int size) throws IOException {
+        github.resetState();
+        if (script.equals("rollback")) {
+            runScript(github, "adder", size);
+        }
+    }
+
+    /**
+     * Runs a script in this JVM, with {@code user.home} pointing at a fresh directory whose {@code .github} file
+     * points at the mock
+     */
+    private void runScript(MockGitHub github, String script, int size) throws IOException {
+        Path home = Files.createTempDirectory("benchmark-home");
+        try {
+            Files.writeString(home.resolve(".github"), "oauth=benchmark\nendpoint=" + github.url() + "\n");
+            System.setProperty("user.home", home.toString());
+
+            String org = "synthetic-" + size;
+            List<String> args = new ArrayList<>(Arrays.asList(
+                    "--reads-per-second", String.valueOf(readsPerSecond),
+                    "--writes-per-second", String.valueOf(writesPerSecond)));
+            Supplier<Runnable> command = switch (script) {
+                case "lister" -> {
+                    args.addAll(List.of(org, "-o", home.resolve("repositories.txt").toString()));
+                    yield GitRepoLister::new;
+                }
+                case "writers" -> {
+                    args.addAll(List.of(org, "-o", home.resolve("github-writers.md").toString(), "-d", "full",
+                            "-j", String.valueOf(parallelism)));
+                    yield GitOrganizationWriters::new;
+                }
+                case "writers-teams" -> {
+                    args.addAll(List.of(org, "-o", home.resolve("github-writers.md").toString(), "-d", "full",
+                            "-j", String.valueOf(parallelism), "--team-resolution", "teams"));
+                    yield GitOrganizationWriters::new;
+                }
+                case "adder" -> {
+                    Path file = Files.writeString(home.resolve("CONTRIBUTING.md"), "Contributions welcome!\n");
+                    args.addAll(List.of("-o", org, "-j", String.valueOf(parallelism),
+                            "--journal-file", home.resolve("git-file-adder.journal").toString(), file.toString()));
+                    yield GitFileAdder::new;
+                }
+                case "rollback" -> {
+                    args.addAll(List.of("-o", org, "-j", String.valueOf(parallelism), "--rollback",
+                            "--journal-file", home.resolve("git-file-adder.journal").toString()));
+                    yield GitFileAdder::new;
+                }
+                default -> throw new CommandLine.ParameterException(new CommandLine(this), "Unknown script " + script);
+            };
+            int exitCode = new CommandLine(command.get()).execute(args.toArray(String[]::new));
+            if (exitCode != 0) {
+                throw new IOException(script + " failed with exit code " + exitCode);
+            }
+        } finally {
+            deleteRecursively(home);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.15.0
+//DEPS com.fasterxml.jackson.dataformat:jackson-dataformat-yaml:2.15.0
+//DEPS com.squareup.okhttp3:okhttp:4.12.0
+//DEPS com.squareup.okhttp3:mockwebserver:4.12.0
+//DEPS info.picocli:picocli:4.7.6
+//DEPS org.kohsuke:github-api:1.327
+//DEPS org.openjdk.jmh:jmh-core:1.37
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.37
+//SOURCES BenchmarkTargets.java
+//SOURCES MockGitHub.java
+//SOURCES ../GitFileAdder.java
+//SOURCES ../GitOrganizationWriters.java
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the parts of the scripts that don't talk to GitHub: sorting writers, aggregating their
+ * repository access, querying GitOrganizationWriters' access index, and building GitFileAdder's content map. The
+ * operations themselves are set up by {@code BenchmarkTargets}.
+ * <p>
+ * Run with {@code jbang benchmarks/MicroBenchmarks.java}; any arguments are passed to JMH, e.g. {@code sortWriters}
+ * to run a single benchmark, {@code -p users=1000} or {@code -rf json -rff results.json}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MicroBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Supplier<Object> target(String name, Class<?> parameterType, Object argument) throws Exception {
+        return (Supplier<Object>) Class.forName("BenchmarkTargets").getMethod(name, parameterType).invoke(null, argument);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Writers {
+        @Param({ "100", "1000", "10000" })
+        int users;
+
+        Supplier<Object> sort;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            sort = target("sortWriters", int.class, users);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Grants {
+        @Param({ "100", "1000", "10000" })
+        int repositories;
+
+        Supplier<Object> aggregate;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            aggregate = target("aggregateRepositoryAccess", int.class, repositories);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Index {
+        @Param({ "100", "1000", "10000" })
+        int repositories;
+
+        Supplier<Object> query;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            query = target("queryAccessIndex", int.class, repositories);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Content {
+        @Param({ "10", "100", "1000" })
+        int files;
+
+        @Param({ "4096" })
+        int fileSize;
+
+        Path dir;
+        Supplier<Object> build;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            dir = Files.createTempDirectory("benchmark-content");
+            Random random = new Random(42);
+            for (int i = 0; i < files; i++) {
+                byte[] content = new byte[fileSize];
+                random.nextBytes(content);
+                Path file = dir.resolve("dir-" + (i % 10)).resolve("file-" + i + ".txt");
+                Files.createDirectories(file.getParent());
+                Files.write(file, content);
+            }
+            build = target("buildContentMap", Path.class, dir);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Object sortWriters(Writers state) {
+        return state.sort.get();
+    }
+
+    @Benchmark
+    public Object aggregateRepositoryAccess(Grants state) {
+        return state.aggregate.get();
+    }
+
+    @Benchmark
+    public Object queryAccessIndex(Index state) {
+        return state.query.get();
+    }
+
+    @Benchmark
+    public Object buildContentMap(Content state) {
+        return state.build.get();
+    }
+}
@@ -0,0 +1,1021 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.15.0
+//DEPS com.squareup.okhttp3:mockwebserver:4.12.0
+//DEPS info.picocli:picocli:4.7.6
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ServerSocketFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import picocli.CommandLine;
+
+/**
+ * A stand-in for the GitHub API that serves synthetic organizations, for benchmarking the scripts without touching
+ * GitHub.
+ * <p>
+ * Each organization is named {@code synthetic-<size>} and has {@code size} repositories. Every tenth repository is
+ * archived. The organizations share a pool of users; each has a few admins, teams with five members (every fourth
+ * team nested in another), and repositories with two teams and three collaborators. All data is derived from indexes,
+ * so runs are repeatable.
+ * <p>
+ * The server implements just enough of the API for the scripts: the organization, repository, team, member,
+ * collaborator and user endpoints they read, GitOrganizationWriters' GraphQL collaborators and profiles queries,
+ * GitFileAdder's GraphQL pre-flight query, and the Git Data API and pull request endpoints GitFileAdder writes to, and
+ * the endpoints its rollback uses. Blobs, trees and commits are accepted but not stored; refs and pull requests are
+ * remembered until {@link #resetState}, so a rollback finds what a previous run created. Every response carries rate
+ * limit headers, and {@code GET} responses carry an {@code ETag} that is honored by conditional requests.
+ */
+@CommandLine.Command(name = "MockGitHub", mixinStandardHelpOptions = true, version = "MockGitHub 0.1", description = """
+        MockGitHub serves synthetic GitHub organizations for benchmarking the scripts.
+        Point the endpoint in ~/.github (or a copy of it in another user.home) at the URL it prints.
+        """)
+public class MockGitHub implements Runnable, AutoCloseable {
+    public static final java.util.logging.Logger log = java.util.logging.Logger.getLogger(MockGitHub.class.getPackageName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int ADMINS = 3;
+    private static final int TEAM_SIZE = 5;
+    private static final int COLLABORATORS = 3;
+
+    /** First names for synthetic user profiles */
+    private static final String[] NAMES = { "Ada", "Brian", "Chen", "Dana", "Emeka", "Farah", "Goran", "Hiro", "Ines",
+            "Jonas", "Kavya", "Luis", "Mira", "Noor" };
+
+    private static final Pattern ORG = Pattern.compile("/orgs/([^/]+)");
+    private static final Pattern ORG_REPOS = Pattern.compile("/orgs/([^/]+)/repos");
+    private static final Pattern ORG_MEMBERS = Pattern.compile("/orgs/([^/]+)/members");
+    private static final Pattern ORG_TEAMS = Pattern.compile("/orgs/([^/]+)/teams");
+    private static final Pattern TEAM_MEMBERS = Pattern.compile("/(?:organizations/(\\d+)/team|teams)/(\\d+)/members");
+    private static final Pattern TEAM_REPOS = Pattern.compile("/(?:organizations/(\\d+)/team|teams)/(\\d+)/repos");
+    private static final Pattern TEAM_CHILDREN = Pattern.compile("/(?:organizations/(\\d+)/team|teams)/(\\d+)/teams");
+    private static final Pattern REPO = Pattern.compile("/repos/([^/]+)/([^/]+)");
+    private static final Pattern REPO_TEAMS = Pattern.compile("/repos/([^/]+)/([^/]+)/teams");
+    private static final Pattern REPO_COLLABORATORS = Pattern.compile("/repos/([^/]+)/([^/]+)/collaborators");
+    private static final Pattern REPO_PERMISSION = Pattern.compile("/repos/([^/]+)/([^/]+)/collaborators/([^/]+)/permission");
+    private static final Pattern REPO_WRITE = Pattern.compile("/repos/([^/]+)/([^/]+)/(git/blobs|git/trees|git/commits|git/refs|pulls)");
+    private static final Pattern REPO_PULLS = Pattern.compile("/repos/([^/]+)/([^/]+)/pulls");
+    private static final Pattern REPO_PULL = Pattern.compile("/repos/([^/]+)/([^/]+)/(?:pulls|issues)/(\\d+)");
+    private static final Pattern REPO_COMMENTS = Pattern.compile("/repos/([^/]+)/([^/]+)/issues/(\\d+)/comments");
+    private static final Pattern REPO_REF = Pattern.compile("/repos/([^/]+)/([^/]+)/git/refs/(.+)");
+    private static final Pattern USER = Pattern.compile("/users/([^/]+)");
+    private static final Pattern GRAPHQL_TOPIC = Pattern.compile("topic: ref\\(qualifiedName: \"refs/heads/([^\"]*)\"\\)");
+    private static final Pattern GRAPHQL_COLLABORATORS = Pattern.compile("\\s*\\{\\s*collaborators\\(");
+    private static final Pattern GRAPHQL_USER = Pattern.compile("(u\\d+): user\\(login: \"([^\"]*)\"\\)");
+    private static final Pattern GRAPHQL_ORG_REPOSITORIES = Pattern.compile("organization\\(login: \"([^\"]*)\"\\) \\{ repositories\\(([^)]*)\\)");
+    private static final Pattern GRAPHQL_ARGUMENT = Pattern.compile("(\\w+): (\"[^\"]*\"|\\{[^}]*\\}|\\w+)");
+    private static final Pattern GRAPHQL_REPOSITORY = Pattern.compile("(r\\d+): repository\\(owner: \"([^\"]*)\", name: \"([^\"]*)\"\\)");
+
+    @CommandLine.Option(names = { "-p", "--port" }, description = "Port to listen on; 0 picks a free port", defaultValue = "0")
+    private int port;
+
+    @CommandLine.Option(names = { "-s", "--sizes" }, description = "Number of repositories in each synthetic organization",
+            split = ",", defaultValue = "100,1000,10000")
+    private List<Integer> sizes;
+
+    @CommandLine.Option(names = { "--latency" }, description = "Delay in milliseconds before each response", defaultValue = "20")
+    private long latencyMillis;
+
+    @CommandLine.Option(names = { "--rate-limit" }, description = "Requests allowed per rate limit window", defaultValue = "1000000")
+    private long rateLimit;
+
+    @CommandLine.Option(names = { "--rate-limit-window" }, description = "Length of the rate limit window in seconds", defaultValue = "3600")
+    private long rateLimitWindowSeconds;
+
+    @CommandLine.Option(names = { "--failure-rate" }, description = "Fraction of requests to fail transiently, alternately " +
+            "with a 502 and a secondary rate limit 403", defaultValue = "0")
+    private double failureRate;
+
+    private final Map<String, Org> orgs = new LinkedHashMap<>();
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong(1_000_000);
+    private final AtomicLong failures = new AtomicLong();
+    /** Refs created in each repository, by {@code org/repo} and then by ref name */
+    private final Map<String, Map<String, String>> refs = new ConcurrentHashMap<>();
+    /** Pull requests opened in each repository, by {@code org/repo} and then by number */
+    private final Map<String, Map<Long, ObjectNode>> pulls = new ConcurrentHashMap<>();
+    private final ReentrantLock rateLimitLock = new ReentrantLock();
+    private MockWebServer server;
+    private String baseUrl;
+    private int users;
+    private long remaining;
+    private long resetEpochSeconds;
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new MockGitHub()).execute(args);
+        System.exit(exitCode);
+    }
+
+    public MockGitHub() {
+    }
+
+    /**
+     * Creates a server; call {@link #start} to start it
+     */
+    public MockGitHub(List<Integer> sizes, Duration latency, long rateLimit, Duration rateLimitWindow) {
+        this.sizes = sizes;
+        this.latencyMillis = latency.toMillis();
+        this.rateLimit = rateLimit;
+        this.rateLimitWindowSeconds = rateLimitWindow.toSeconds();
+    }
+
+    /**
+     * Makes the server fail a fraction of requests transiently, alternately with a 502 and a secondary rate limit
+     * 403 asking the client to retry after a second
+     */
+    public MockGitHub failureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    @Override
+    public void run() {
+        try {
+            start(port);
+            System.out.println("Mock GitHub listening at " + baseUrl + " serving organizations " + orgs.keySet());
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (IOException e) {
+            log.severe("Error: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the server
+     *
+     * @param port port to listen on, or 0 to pick a free port
+     */
+    public void start(int port) throws IOException {
+        int maxSize = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            int size = sizes.get(i);
+            Org org = new Org("synthetic-" + size, i + 1, size, Math.max(3, size / 20));
+            orgs.put(org.login(), org);
+            maxSize = Math.max(maxSize, size);
+        }
+        users = Math.max(10, maxSize / 5);
+        remaining = rateLimit;
+        resetEpochSeconds = Instant.now().getEpochSecond() + rateLimitWindowSeconds;
+
+        server = new MockWebServer();
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond(request);
+            }
+        });
+        server.start(port);
+        String url = server.url("/").toString();
+        baseUrl = url.substring(0, url.length() - 1);
+    }
+
+    /**
+     * The API endpoint, for the {@code endpoint} property of {@code ~/.github}
+     */
+    public String url() {
+        return baseUrl;
+    }
+
+    /**
+     * The names of the synthetic organizations
+     */
+    public List<String> organizations() {
+        return new ArrayList<>(orgs.keySet());
+    }
+
+    /**
+     * Number of requests received so far, by route
+     */
+    public Map<String, Long> requestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((route, count) -> counts.put(route, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Total number of requests received so far
+     */
+    public long requestCount() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Forgets the refs and pull requests created so far
+     */
+    public void resetState() {
+        refs.clear();
+        pulls.clear();
+    }
+
+    /**
+     * Forgets the request counts
+     */
+    public void resetCounts() {
+        requests.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+
+    private MockResponse respond(RecordedRequest request) {
+        String path = request.getRequestUrl().encodedPath();
+        String method = request.getMethod();
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            return injectedFailure(method);
+        }
+        Route route;
+        try {
+            route = route(method, path, request);
+        } catch (RuntimeException e) {
+            log.warning("Failed to handle " + method + " " + path + ": " + e);
+            route = new Route("error", 500, MAPPER.createObjectNode().put("message", String.valueOf(e)));
+        }
+        requests.computeIfAbsent(method + " " + route.name(), k -> new LongAdder()).increment();
+
+        MockResponse response = new MockResponse().setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+        String body = route.body() == null ? null : route.body().toString();
+        String etag = null;
+        if ("GET".equals(method) && route.status() == 200 && body != null) {
+            etag = "\"" + sha1(body.getBytes(StandardCharsets.UTF_8)).substring(0, 20) + "\"";
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                // Conditional requests that are answered with 304 don't count against the rate limit
+                rateLimitHeaders(response, false, path);
+                return response.setResponseCode(304).setHeader("ETag", etag);
+            }
+        }
+        if (!rateLimitHeaders(response, true, path)) {
+            return response.setResponseCode(403)
+                    .setHeader("Content-Type", "application/json")
+                    .setBody("{\"message\":\"API rate limit exceeded\"}");
+        }
+        response.setResponseCode(route.status()).setHeader("Content-Type", "application/json");
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        if (route.link() != null) {
+            response.setHeader("Link", route.link());
+        }
+        return body == null ? response : response.setBody(body);
+    }
+
+    private MockResponse injectedFailure(String method) {
+        MockResponse response = new MockResponse().setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS)
+                .setHeader("Content-Type", "application/json");
+        if (failures.getAndIncrement() % 2 == 0) {
+            requests.computeIfAbsent(method + " injected 502", k -> new LongAdder()).increment();
+            return response.setResponseCode(502).setBody("{\"message\":\"Server Error\"}");
+        }
+        requests.computeIfAbsent(method + " injected 403", k -> new LongAdder()).increment();
+        return response.setResponseCode(403).setHeader("Retry-After", 1)
+                .setBody("{\"message\":\"You have exceeded a secondary rate limit. Please wait a few minutes before you try again.\"}");
+    }
+
+    /**
+     * Adds rate limit headers to the response
+     *
+     * @return false if the rate limit is exhausted
+     */
+    private boolean rateLimitHeaders(MockResponse response, boolean counted, String path) {
+        long now = Instant.now().getEpochSecond();
+        long left;
+        long reset;
+        boolean allowed = true;
+        rateLimitLock.lock();
+        try {
+            if (now >= resetEpochSeconds) {
+                remaining = rateLimit;
+                resetEpochSeconds = now + rateLimitWindowSeconds;
+            }
+            if (counted) {
+                if (remaining > 0) {
+                    remaining--;
+                } else {
+                    allowed = false;
+                }
+            }
+            left = remaining;
+            reset = resetEpochSeconds;
+        } finally {
+            rateLimitLock.unlock();
+        }
+        response.setHeader("X-RateLimit-Limit", rateLimit)
+                .setHeader("X-RateLimit-Remaining", left)
+                .setHeader("X-RateLimit-Used", rateLimit - left)
+                .setHeader("X-RateLimit-Reset", reset)
+                .setHeader("X-RateLimit-Resource", path.equals("/graphql") ? "graphql" : "core");
+        return allowed;
+    }
+
+    private Route route(String method, String path, RecordedRequest request) {
+        Matcher m;
+        if ("POST".equals(method) && path.equals("/graphql")) {
+            return new Route("/graphql", 200, graphQL(request));
+        } else if ("POST".equals(method) && (m = REPO_WRITE.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            int repo = org == null ? -1 : org.repoIndex(m.group(2));
+            if (repo < 0) {
+                return notFound("/repos/*/*/" + m.group(3));
+            }
+            return created(org, repo, m.group(3), request);
+        } else if ("POST".equals(method) && (m = REPO_COMMENTS.matcher(path)).matches()) {
+            Map<Long, ObjectNode> repoPulls = pulls.getOrDefault(m.group(1) + "/" + m.group(2), Map.of());
+            if (!repoPulls.containsKey(Long.parseLong(m.group(3)))) {
+                return notFound("/repos/*/*/issues/*/comments");
+            }
+            return new Route("/repos/*/*/issues/*/comments", 201, MAPPER.createObjectNode().put("id", ids.incrementAndGet()));
+        } else if ("PATCH".equals(method) && (m = REPO_PULL.matcher(path)).matches()) {
+            ObjectNode pull = pulls.getOrDefault(m.group(1) + "/" + m.group(2), Map.of()).get(Long.parseLong(m.group(3)));
+            if (pull == null) {
+                return notFound("/repos/*/*/pulls/*");
+            }
+            String state = readBody(request).path("state").asText(null);
+            synchronized (pull) {
+                if (state != null) {
+                    pull.put("state", state);
+                }
+                return new Route("/repos/*/*/pulls/*", 200, pull.deepCopy());
+            }
+        } else if ("DELETE".equals(method) && (m = REPO_REF.matcher(path)).matches()) {
+            Map<String, String> repoRefs = refs.getOrDefault(m.group(1) + "/" + m.group(2), Map.of());
+            if (repoRefs.remove("refs/" + m.group(3)) == null) {
+                return new Route("/repos/*/*/git/refs/*", 422, MAPPER.createObjectNode().put("message", "Reference does not exist"));
+            }
+            return new Route("/repos/*/*/git/refs/*", 204, null);
+        } else if (!"GET".equals(method)) {
+            return notFound(path);
+        }
+
+        if (path.equals("/user")) {
+            return new Route("/user", 200, user(0));
+        } else if ((m = USER.matcher(path)).matches()) {
+            int user = userIndex(m.group(1));
+            return user < 0 ? notFound("/users/*") : new Route("/users/*", 200, user(user));
+        } else if ((m = ORG.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            return org == null ? notFound("/orgs/*") : new Route("/orgs/*", 200, org.toJson());
+        } else if ((m = ORG_REPOS.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            return org == null ? notFound("/orgs/*/repos") : repositories(org, request);
+        } else if ((m = ORG_MEMBERS.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            if (org == null) {
+                return notFound("/orgs/*/members");
+            }
+            ArrayNode admins = MAPPER.createArrayNode();
+            for (int i = 1; i <= ADMINS; i++) {
+                admins.add(summary(i));
+            }
+            return new Route("/orgs/*/members", 200, admins);
+        } else if ((m = TEAM_MEMBERS.matcher(path)).matches()) {
+            long teamId = Long.parseLong(m.group(2));
+            Org org = orgs.values().stream().filter(o -> o.ownsTeam(teamId)).findFirst().orElse(null);
+            if (org == null) {
+                return notFound("/teams/*/members");
+            }
+            // As on GitHub, a team's members include the members of its child teams
+            Set<Integer> users = new TreeSet<>();
+            for (int team = org.teamIndex(teamId); team != 0; team = org.childTeam(team)) {
+                for (int user : org.teamMembers(team)) {
+                    users.add(user);
+                }
+            }
+            ArrayNode members = MAPPER.createArrayNode();
+            for (int user : users) {
+                members.add(summary(user));
+            }
+            return new Route("/teams/*/members", 200, members);
+        } else if ((m = ORG_TEAMS.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            if (org == null) {
+                return notFound("/orgs/*/teams");
+            }
+            ArrayNode teams = MAPPER.createArrayNode();
+            for (int team = 1; team <= org.teams(); team++) {
+                teams.add(org.team(team, "pull"));
+            }
+            return paged("/orgs/*/teams", teams, request);
+        } else if ((m = TEAM_REPOS.matcher(path)).matches()) {
+            long teamId = Long.parseLong(m.group(2));
+            Org org = orgs.values().stream().filter(o -> o.ownsTeam(teamId)).findFirst().orElse(null);
+            if (org == null) {
+                return notFound("/teams/*/repos");
+            }
+            // Only the team's own grants are listed, not those inherited from its parent
+            int team = org.teamIndex(teamId);
+            ArrayNode repos = MAPPER.createArrayNode();
+            for (int repo = 1; repo <= org.repos(); repo++) {
+                int[] repoTeams = org.repoTeams(repo);
+                for (int i = 0; i < repoTeams.length; i++) {
+                    if (repoTeams[i] == team) {
+                        ObjectNode node = org.repository(repo);
+                        node.put("role_name", i == 0 ? "push" : "pull");
+                        node.putObject("permissions").put("admin", false).put("maintain", false)
+                                .put("push", i == 0).put("triage", i == 0).put("pull", true);
+                        repos.add(node);
+                    }
+                }
+            }
+            return paged("/teams/*/repos", repos, request);
+        } else if ((m = TEAM_CHILDREN.matcher(path)).matches()) {
+            long teamId = Long.parseLong(m.group(2));
+            Org org = orgs.values().stream().filter(o -> o.ownsTeam(teamId)).findFirst().orElse(null);
+            if (org == null) {
+                return notFound("/teams/*/teams");
+            }
+            ArrayNode children = MAPPER.createArrayNode();
+            int child = org.childTeam(org.teamIndex(teamId));
+            if (child != 0) {
+                children.add(org.team(child, "pull"));
+            }
+            return new Route("/teams/*/teams", 200, children);
+        } else if ((m = REPO_PERMISSION.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            int repo = org == null ? -1 : org.repoIndex(m.group(2));
+            int user = userIndex(m.group(3));
+            if (repo < 0 || user < 0) {
+                return notFound("/repos/*/*/collaborators/*/permission");
+            }
+            ObjectNode permission = MAPPER.createObjectNode();
+            permission.put("permission", org.collaboratorPermission(repo, user));
+            permission.set("user", summary(user));
+            return new Route("/repos/*/*/collaborators/*/permission", 200, permission);
+        } else if ((m = REPO_COLLABORATORS.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            int repo = org == null ? -1 : org.repoIndex(m.group(2));
+            if (repo < 0) {
+                return notFound("/repos/*/*/collaborators");
+            }
+            ArrayNode collaborators = MAPPER.createArrayNode();
+            for (int user : org.collaborators(repo)) {
+                String role = org.collaboratorPermission(repo, user);
+                ObjectNode collaborator = summary(user).put("role_name", role);
+                collaborator.putObject("permissions").put("admin", role.equals("admin"))
+                        .put("push", !role.equals("read")).put("pull", true);
+                collaborators.add(collaborator);
+            }
+            return new Route("/repos/*/*/collaborators", 200, collaborators);
+        } else if ((m = REPO_PULLS.matcher(path)).matches()) {
+            String head = request.getRequestUrl().queryParameter("head");
+            String state = request.getRequestUrl().queryParameter("state");
+            ArrayNode result = MAPPER.createArrayNode();
+            for (ObjectNode pull : new TreeMap<>(pulls.getOrDefault(m.group(1) + "/" + m.group(2), Map.of())).values()) {
+                synchronized (pull) {
+                    if ((head == null || head.equals(pull.path("head").path("label").asText()))
+                            && (state == null || "all".equals(state) || state.equals(pull.path("state").asText()))) {
+                        result.add(pull.deepCopy());
+                    }
+                }
+            }
+            return new Route("/repos/*/*/pulls", 200, result);
+        } else if ((m = REPO_REF.matcher(path)).matches()) {
+            String ref = "refs/" + m.group(3);
+            String sha = refs.getOrDefault(m.group(1) + "/" + m.group(2), Map.of()).get(ref);
+            return sha == null ? notFound("/repos/*/*/git/refs/*")
+                    : new Route("/repos/*/*/git/refs/*", 200, ref(m.group(1), m.group(2), ref, sha));
+        } else if ((m = REPO_TEAMS.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            int repo = org == null ? -1 : org.repoIndex(m.group(2));
+            if (repo < 0) {
+                return notFound("/repos/*/*/teams");
+            }
+            ArrayNode teams = MAPPER.createArrayNode();
+            int[] repoTeams = org.repoTeams(repo);
+            for (int i = 0; i < repoTeams.length; i++) {
+                teams.add(org.team(repoTeams[i], i == 0 ? "push" : "pull"));
+            }
+            return new Route("/repos/*/*/teams", 200, teams);
+        } else if ((m = REPO.matcher(path)).matches()) {
+            Org org = orgs.get(m.group(1));
+            int repo = org == null ? -1 : org.repoIndex(m.group(2));
+            return repo < 0 ? notFound("/repos/*/*") : new Route("/repos/*/*", 200, org.repository(repo));
+        }
+        return notFound(path);
+    }
+
+    private Route repositories(Org org, RecordedRequest request) {
+        int perPage = intParameter(request, "per_page", 30);
+        int page = intParameter(request, "page", 1);
+        int pages = Math.max(1, (org.repos() + perPage - 1) / perPage);
+        ArrayNode repos = MAPPER.createArrayNode();
+        for (int i = (page - 1) * perPage + 1; i <= Math.min(org.repos(), page * perPage); i++) {
+            repos.add(org.repository(i));
+        }
+        String link = null;
+        if (page < pages) {
+            String pageUrl = baseUrl + "/orgs/" + org.login() + "/repos?per_page=" + perPage + "&page=";
+            link = "<" + pageUrl + (page + 1) + ">; rel=\"next\", <" + pageUrl + pages + ">; rel=\"last\"";
+        }
+        return new Route("/orgs/*/repos", 200, repos, link);
+    }
+
+    /**
+     * Serves a page of GitHubRepositoryListing's query, applying the filters it passes as arguments and returning
+     * only the fields it selects. A cursor is the number of matching repositories before the page.
+     */
+    private ObjectNode repositories(Org org, String arguments, String query) {
+        Map<String, String> args = new HashMap<>();
+        Matcher a = GRAPHQL_ARGUMENT.matcher(arguments);
+        while (a.find()) {
+            args.put(a.group(1), a.group(2).replace("\"", ""));
+        }
+        List<Integer> matching = new ArrayList<>();
+        for (int repo = 1; repo <= org.repos(); repo++) {
+            if ((!args.containsKey("isArchived") || Boolean.parseBoolean(args.get("isArchived")) == (repo % 10 == 0))
+                    && (!args.containsKey("isFork") || Boolean.parseBoolean(args.get("isFork")) == (repo % 13 == 0))
+                    && (!args.containsKey("privacy") || args.get("privacy").equals(repo % 4 == 0 ? "PRIVATE" : "PUBLIC"))) {
+                matching.add(repo);
+            }
+        }
+        if (args.getOrDefault("orderBy", "").contains("DESC")) {
+            // Repositories are pushed to in the order of their index
+            Collections.reverse(matching);
+        }
+        int first = Integer.parseInt(args.getOrDefault("first", "100"));
+        int start = Integer.parseInt(args.getOrDefault("after", "0"));
+        int end = Math.min(matching.size(), start + first);
+        ObjectNode connection = MAPPER.createObjectNode();
+        connection.putObject("pageInfo").put("hasNextPage", end < matching.size()).put("endCursor", String.valueOf(end));
+        ArrayNode nodes = connection.putArray("nodes");
+        for (int repo : matching.subList(Math.min(start, end), end)) {
+            JsonNode rest = org.repository(repo);
+            ObjectNode node = nodes.addObject();
+            node.put("name", rest.path("name").asText()).put("isArchived", rest.path("archived").asBoolean());
+            if (query.contains(" url")) {
+                node.put("url", rest.path("html_url").asText());
+            }
+            if (query.contains("defaultBranchRef")) {
+                node.putObject("defaultBranchRef").put("name", rest.path("default_branch").asText());
+            }
+            if (query.contains(" visibility")) {
+                node.put("visibility", rest.path("visibility").asText().toUpperCase());
+            }
+            if (query.contains(" pushedAt")) {
+                node.put("pushedAt", rest.path("pushed_at").asText());
+            }
+            if (query.contains("repositoryTopics")) {
+                ArrayNode topics = node.putObject("repositoryTopics").putArray("nodes");
+                rest.path("topics").forEach(topic -> topics.addObject().putObject("topic").put("name", topic.asText()));
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Serves the page of a listing asked for by the {@code per_page} and {@code page} parameters
+     */
+    private Route paged(String route, ArrayNode items, RecordedRequest request) {
+        int perPage = intParameter(request, "per_page", 30);
+        int page = intParameter(request, "page", 1);
+        int pages = Math.max(1, (items.size() + perPage - 1) / perPage);
+        ArrayNode result = MAPPER.createArrayNode();
+        for (int i = (page - 1) * perPage; i < Math.min(items.size(), page * perPage); i++) {
+            result.add(items.get(i));
+        }
+        String link = null;
+        if (page < pages) {
+            String pageUrl = baseUrl + request.getRequestUrl().encodedPath() + "?per_page=" + perPage + "&page=";
+            link = "<" + pageUrl + (page + 1) + ">; rel=\"next\", <" + pageUrl + pages + ">; rel=\"last\"";
+        }
+        return new Route(route, 200, result, link);
+    }
+
+    private ObjectNode graphQL(RecordedRequest request) {
+        String query;
+        try {
+            query = MAPPER.readTree(request.getBody().readUtf8()).path("query").asText();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        ObjectNode data = MAPPER.createObjectNode();
+        Matcher o = GRAPHQL_ORG_REPOSITORIES.matcher(query);
+        if (o.find()) {
+            Org org = orgs.get(o.group(1));
+            if (org == null) {
+                data.putNull("organization");
+            } else {
+                data.putObject("organization").set("repositories", repositories(org, o.group(2), query));
+            }
+        }
+        Matcher u = GRAPHQL_USER.matcher(query);
+        while (u.find()) {
+            int user = userIndex(u.group(2));
+            if (user < 0) {
+                data.putNull(u.group(1));
+            } else {
+                JsonNode profile = user(user);
+                data.putObject(u.group(1)).put("name", profile.path("name").asText(null))
+                        .put("url", profile.path("html_url").asText());
+            }
+        }
+        Matcher m = GRAPHQL_REPOSITORY.matcher(query);
+        while (m.find()) {
+            Org org = orgs.get(m.group(2));
+            int repo = org == null ? -1 : org.repoIndex(m.group(3));
+            if (repo < 0) {
+                data.putNull(m.group(1));
+                continue;
+            }
+            ObjectNode repository = data.putObject(m.group(1));
+            if (GRAPHQL_COLLABORATORS.matcher(query).region(m.end(), query.length()).lookingAt()) {
+                // GitOrganizationWriters' collaborators query; every repository's collaborators fit on one page
+                ObjectNode collaborators = repository.putObject("collaborators");
+                collaborators.putObject("pageInfo").put("hasNextPage", false).putNull("endCursor");
+                ArrayNode edges = collaborators.putArray("edges");
+                for (int user : org.collaborators(repo)) {
+                    ObjectNode edge = edges.addObject();
+                    edge.put("permission", org.collaboratorPermission(repo, user).toUpperCase());
+                    edge.putObject("node").put("login", summary(user).path("login").asText());
+                }
+                continue;
+            }
+            ObjectNode base = repository.putObject("base");
+            base.put("name", "main");
+            ObjectNode target = base.putObject("target");
+            target.put("oid", sha1((org.login() + "/" + repo + "/commit").getBytes(StandardCharsets.UTF_8)));
+            target.putObject("tree").put("oid", sha1((org.login() + "/" + repo + "/tree").getBytes(StandardCharsets.UTF_8)));
+            String key = org.login() + "/" + org.repoName(repo);
+            String topic = topicBranch(query, m.end());
+            if (topic != null && refs.getOrDefault(key, Map.of()).containsKey("refs/heads/" + topic)) {
+                repository.putObject("topic").put("name", topic);
+            } else {
+                repository.putNull("topic");
+            }
+            ArrayNode nodes = repository.putObject("pullRequests").putArray("nodes");
+            for (ObjectNode pull : pulls.getOrDefault(key, Map.of()).values()) {
+                synchronized (pull) {
+                    if ("open".equals(pull.path("state").asText()) && topic != null
+                            && topic.equals(pull.path("head").path("ref").asText())) {
+                        nodes.addObject().put("url", pull.path("html_url").asText());
+                    }
+                }
+            }
+        }
+        ObjectNode response = MAPPER.createObjectNode();
+        response.set("data", data);
+        return response;
+    }
+
+    private Route created(Org org, int repo, String collection, RecordedRequest request) {
+        JsonNode body = readBody(request);
+        String key = org.login() + "/" + org.repoName(repo);
+        String route = "/repos/*/*/" + collection;
+        String repoUrl = baseUrl + "/repos/" + org.login() + "/" + org.repoName(repo);
+        ObjectNode result = MAPPER.createObjectNode();
+        String sha = sha1(Long.toString(ids.incrementAndGet()).getBytes(StandardCharsets.US_ASCII));
+        switch (collection) {
+            case "git/blobs" -> {
+                // Return the real blob SHA, which GitFileAdder checks against the one it computed
+                byte[] content = Base64.getMimeDecoder().decode(body.path("content").asText());
+                byte[] header = ("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII);
+                byte[] blob = new byte[header.length + content.length];
+                System.arraycopy(header, 0, blob, 0, header.length);
+                System.arraycopy(content, 0, blob, header.length, content.length);
+                result.put("sha", sha1(blob)).put("url", repoUrl + "/git/blobs/" + sha1(blob));
+            }
+            case "git/trees" -> {
+                result.put("sha", sha).put("url", repoUrl + "/git/trees/" + sha).put("truncated", false);
+                result.putArray("tree");
+            }
+            case "git/commits" -> {
+                result.put("sha", sha).put("url", repoUrl + "/git/commits/" + sha)
+                        .put("message", body.path("message").asText());
+                result.putObject("tree").put("sha", body.path("tree").asText());
+            }
+            case "git/refs" -> {
+                String ref = body.path("ref").asText();
+                if (refs.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).putIfAbsent(ref, body.path("sha").asText()) != null) {
+                    return new Route(route, 422, MAPPER.createObjectNode().put("message", "Reference already exists"));
+                }
+                return new Route(route, 201, ref(org.login(), org.repoName(repo), ref, body.path("sha").asText()));
+            }
+            default -> {
+                String head = body.path("head").asText();
+                if (!refs.getOrDefault(key, Map.of()).containsKey("refs/heads/" + head)) {
+                    return new Route(route, 422, MAPPER.createObjectNode().put("message", "Validation Failed"));
+                }
+                long number = ids.incrementAndGet();
+                result.put("id", number).put("number", number).put("state", "open")
+                        .put("title", body.path("title").asText())
+                        .put("url", repoUrl + "/pulls/" + number)
+                        .put("html_url", "https://github.example/" + key + "/pull/" + number);
+                result.putObject("head").put("ref", head).put("label", org.login() + ":" + head);
+                result.putObject("base").put("ref", body.path("base").asText());
+                pulls.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(number, result);
+                return new Route(route, 201, result.deepCopy());
+            }
+        }
+        return new Route(route, 201, result);
+    }
+
+    private ObjectNode ref(String org, String repo, String ref, String sha) {
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("ref", ref).put("url", baseUrl + "/repos/" + org + "/" + repo + "/git/" + ref);
+        result.putObject("object").put("sha", sha).put("type", "commit");
+        return result;
+    }
+
+    /**
+     * The topic branch GitFileAdder's pre-flight query asks about for the repository whose selection starts at
+     * {@code start}
+     */
+    private static String topicBranch(String query, int start) {
+        Matcher m = GRAPHQL_TOPIC.matcher(query);
+        return m.find(start) ? m.group(1) : null;
+    }
+
+    private static JsonNode readBody(RecordedRequest request) {
+        try {
+            return MAPPER.readTree(request.getBody().readUtf8());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static Route notFound(String route) {
+        return new Route(route, 404, MAPPER.createObjectNode().put("message", "Not Found"));
+    }
+
+    private static int intParameter(RecordedRequest request, String name, int defaultValue) {
+        String value = request.getRequestUrl().queryParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private int userIndex(String login) {
+        if (!login.startsWith("user-")) {
+            return -1;
+        }
+        try {
+            int index = Integer.parseInt(login.substring("user-".length()));
+            return index >= 1 && index <= users ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private ObjectNode summary(int user) {
+        String login = user == 0 ? "benchmark" : String.format("user-%05d", user);
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("login", login).put("id", user).put("type", "User")
+                .put("url", baseUrl + "/users/" + login)
+                .put("html_url", "https://github.example/" + login);
+        return node;
+    }
+
+    private ObjectNode user(int user) {
+        ObjectNode node = summary(user);
+        // github-api treats a user without created_at as a summary, and fetches the full profile when it is needed
+        node.put("created_at", Instant.ofEpochSecond(1_500_000_000L + user * 86_400L).toString());
+        // Leave some names unset, as the scripts fall back to the login for those
+        if (user % 7 != 0) {
+            node.put("name", NAMES[user % NAMES.length] + " " + Integer.toString(user * 7919 % 100_003, 36));
+        } else {
+            node.putNull("name");
+        }
+        return node;
+    }
+
+    private static String sha1(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Disables Nagle's algorithm on accepted connections. MockWebServer writes the headers and body of a response
+     * separately, which otherwise adds a delayed ACK round trip (typically 40ms) to every response.
+     */
+    private static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 50);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        /**
+         * @param address the local address to listen on, or {@code null} for all of them
+         */
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            ServerSocket socket = createServerSocket();
+            try {
+                socket.bind(new InetSocketAddress(address, port), backlog);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+    }
+
+    private record Route(String name, int status, JsonNode body, String link) {
+        private Route(String name, int status, JsonNode body) {
+            this(name, status, body, null);
+        }
+    }
+
+    /**
+     * A synthetic organization. Repositories and teams are numbered from 1.
+     */
+    private final class Org {
+        private final String login;
+        private final int id;
+        private final int repos;
+        private final int teams;
+
+        private Org(String login, int id, int repos, int teams) {
+            this.login = login;
+            this.id = id;
+            this.repos = repos;
+            this.teams = teams;
+        }
+
+        private String login() {
+            return login;
+        }
+
+        private int repos() {
+            return repos;
+        }
+
+        private String repoName(int repo) {
+            return String.format("repo-%05d", repo);
+        }
+
+        private int repoIndex(String name) {
+            if (!name.startsWith("repo-")) {
+                return -1;
+            }
+            try {
+                int index = Integer.parseInt(name.substring("repo-".length()));
+                return index >= 1 && index <= repos ? index : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private long teamId(int team) {
+            return id * 100_000L + team;
+        }
+
+        private boolean ownsTeam(long teamId) {
+            return teamId / 100_000L == id && teamIndex(teamId) >= 1 && teamIndex(teamId) <= teams;
+        }
+
+        private int teamIndex(long teamId) {
+            return (int) (teamId % 100_000L);
+        }
+
+        private int teams() {
+            return teams;
+        }
+
+        /**
+         * Every fourth team is nested in another: team 4n is the child of team n
+         */
+        private int parentTeam(int team) {
+            return team % 4 == 0 ? team / 4 : 0;
+        }
+
+        /**
+         * @return the team's child team, or 0 if it has none
+         */
+        private int childTeam(int team) {
+            return team * 4 <= teams ? team * 4 : 0;
+        }
+
+        private int[] teamMembers(int team) {
+            int[] members = new int[TEAM_SIZE];
+            for (int i = 0; i < TEAM_SIZE; i++) {
+                members[i] = (team * TEAM_SIZE + i) % users + 1;
+            }
+            return members;
+        }
+
+        private int[] repoTeams(int repo) {
+            int writers = repo % teams + 1;
+            int readers = (repo * 7) % teams + 1;
+            return writers == readers ? new int[] { writers } : new int[] { writers, readers };
+        }
+
+        private int[] collaborators(int repo) {
+            int[] collaborators = new int[COLLABORATORS];
+            for (int i = 0; i < COLLABORATORS; i++) {
+                collaborators[i] = (repo * COLLABORATORS + i * 31) % users + 1;
+            }
+            return collaborators;
+        }
+
+        private String collaboratorPermission(int repo, int user) {
+            return switch ((repo + user) % 3) {
+                case 0 -> "admin";
+                case 1 -> "write";
+                default -> "read";
+            };
+        }
+
+        private ObjectNode toJson() {
+            ObjectNode node = MAPPER.createObjectNode();
+            node.put("login", login).put("id", id).put("type", "Organization")
+                    .put("url", baseUrl + "/orgs/" + login)
+                    .put("html_url", "https://github.example/" + login)
+                    .put("public_repos", repos);
+            return node;
+        }
+
+        private ObjectNode repository(int repo) {
+            String name = repoName(repo);
+            ObjectNode node = MAPPER.createObjectNode();
+            node.put("id", id * 1_000_000L + repo).put("name", name).put("full_name", login + "/" + name)
+                    .put("url", baseUrl + "/repos/" + login + "/" + name)
+                    .put("html_url", "https://github.example/" + login + "/" + name)
+                    .put("archived", repo % 10 == 0)
+                    .put("fork", repo % 13 == 0)
+                    .put("private", repo % 4 == 0)
+                    .put("visibility", repo % 4 == 0 ? "private" : "public")
+                    .put("default_branch", "main")
+                    .put("pushed_at", Instant.ofEpochSecond(1_700_000_000L + repo * 3600L).toString());
+            node.putObject("owner").put("login", login).put("id", id).put("type", "Organization");
+            node.putArray("topics").add(repo % 2 == 0 ? "even" : "odd");
+            return node;
+        }
+
+        private ObjectNode team(int team, String permission) {
+            long teamId = teamId(team);
+            ObjectNode node = MAPPER.createObjectNode();
+            node.put("id", teamId).put("name", String.format("Team %04d", team))
+                    .put("slug", String.format("team-%04d", team))
+                    .put("permission", permission)
+                    .put("url", baseUrl + "/organizations/" + id + "/team/" + teamId);
+            int parent = parentTeam(team);
+            if (parent != 0) {
+                node.putObject("parent").put("id", teamId(parent)).put("name", String.format("Team %04d", parent))
+                        .put("slug", String.format("team-%04d", parent));
+            } else {
+                node.putNull("parent");
+            }
+            return node;
+        }
+    }
+}